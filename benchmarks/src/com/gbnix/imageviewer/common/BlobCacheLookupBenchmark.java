@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.common;
+
+import java.io.File;
+import java.util.Random;
+
+// Measures the lookups per second of a BlobCache shared by several threads.
+// With the argument "sync", the lookups are serialized on the cache.
+public class BlobCacheLookupBenchmark {
+	private static final int BLOB_COUNT = 1500;
+	private static final int BLOB_SIZE = 30 * 1024;
+	private static final long DURATION = 2000; // ms
+	private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+
+	public static void main(final String[] args) throws Exception {
+		final boolean sync = args.length > 0 && args[0].equals("sync");
+		final File dir = new File(System.getProperty("java.io.tmpdir"), "blobcache-bench");
+		dir.mkdirs();
+		final String path = new File(dir, "lookup").getPath();
+		BlobCache.deleteFiles(path);
+		final BlobCache cache = new BlobCache(path, 5000, 200 * 1024 * 1024, true);
+		try {
+			final byte[] data = new byte[BLOB_SIZE];
+			new Random(1).nextBytes(data);
+			for (int i = 0; i < BLOB_COUNT; i++) {
+				cache.insert(getKey(i), data);
+			}
+			for (final int threadCount : THREAD_COUNTS) {
+				final long count = run(cache, threadCount, sync);
+				System.out.println((sync ? "sync" : "concurrent") + " threads=" + threadCount + " lookups/s="
+						+ count * 1000 / DURATION);
+			}
+		} finally {
+			cache.close();
+			BlobCache.deleteFiles(path);
+		}
+	}
+
+	private static long run(final BlobCache cache, final int threadCount, final boolean sync)
+			throws InterruptedException {
+		final long[] counts = new long[threadCount];
+		final Throwable[] errors = new Throwable[threadCount];
+		final Thread[] threads = new Thread[threadCount];
+		final long end = System.currentTimeMillis() + DURATION;
+		for (int i = 0; i < threadCount; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					final Random random = new Random(index);
+					final BlobCache.LookupRequest request = new BlobCache.LookupRequest();
+					try {
+						while (System.currentTimeMillis() < end) {
+							request.key = getKey(random.nextInt(BLOB_COUNT));
+							final boolean hit;
+							if (sync) {
+								synchronized (cache) {
+									hit = cache.lookup(request);
+								}
+							} else {
+								hit = cache.lookup(request);
+							}
+							if (!hit) throw new AssertionError("miss " + request.key);
+							counts[index]++;
+						}
+					} catch (final Throwable t) {
+						errors[index] = t;
+					}
+				}
+			};
+			threads[i].start();
+		}
+		long total = 0;
+		for (int i = 0; i < threadCount; i++) {
+			threads[i].join();
+			if (errors[i] != null) throw new RuntimeException(errors[i]);
+			total += counts[i];
+		}
+		return total;
+	}
+
+	private static long getKey(final int index) {
+		return index * 7919L + 13;
+	}
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.common;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+// Checks the lookups running in parallel with inserts which keep flipping
+// the regions of a small cache. The data of each key is derived from the
+// key, so every hit can be verified.
+public class BlobCacheStressCheck {
+	private static final int KEY_COUNT = 2000;
+	private static final int MAX_ENTRIES = 400;
+	private static final int MAX_BYTES = 300 * 1024;
+	private static final int READER_COUNT = 4;
+	private static final long DURATION = 3000; // ms
+
+	public static void main(final String[] args) throws Exception {
+		final File dir = new File(System.getProperty("java.io.tmpdir"), "blobcache-bench");
+		dir.mkdirs();
+		final String path = new File(dir, "stress").getPath();
+		BlobCache.deleteFiles(path);
+		final BlobCache cache = new BlobCache(path, MAX_ENTRIES, MAX_BYTES, true);
+		final Throwable[] errors = new Throwable[READER_COUNT + 1];
+		final long[] hits = new long[READER_COUNT];
+		final long[] lookups = new long[READER_COUNT];
+		final long end = System.currentTimeMillis() + DURATION;
+		final Thread[] threads = new Thread[READER_COUNT + 1];
+		threads[READER_COUNT] = new Thread() {
+			@Override
+			public void run() {
+				final Random random = new Random();
+				try {
+					while (System.currentTimeMillis() < end) {
+						final long key = random.nextInt(KEY_COUNT);
+						cache.insert(key, getData(key));
+					}
+				} catch (final Throwable t) {
+					errors[READER_COUNT] = t;
+				}
+			}
+		};
+		for (int i = 0; i < READER_COUNT; i++) {
+			final int index = i;
+			threads[i] = new Thread() {
+				@Override
+				public void run() {
+					final Random random = new Random(index);
+					final BlobCache.LookupRequest request = new BlobCache.LookupRequest();
+					try {
+						while (System.currentTimeMillis() < end) {
+							request.key = random.nextInt(KEY_COUNT);
+							lookups[index]++;
+							if (!cache.lookup(request)) {
+								continue;
+							}
+							hits[index]++;
+							final byte[] expected = getData(request.key);
+							if (request.length != expected.length
+									|| !Arrays.equals(expected, Arrays.copyOf(request.buffer, request.length))) {
+								throw new AssertionError("wrong data for key " + request.key);
+							}
+						}
+					} catch (final Throwable t) {
+						errors[index] = t;
+					}
+				}
+			};
+		}
+		for (final Thread thread : threads) {
+			thread.start();
+		}
+		boolean failed = false;
+		for (int i = 0; i < threads.length; i++) {
+			threads[i].join();
+			if (errors[i] != null) {
+				errors[i].printStackTrace();
+				failed = true;
+			}
+		}
+		long hitCount = 0;
+		long lookupCount = 0;
+		for (int i = 0; i < READER_COUNT; i++) {
+			hitCount += hits[i];
+			lookupCount += lookups[i];
+		}
+		System.out.println("failed=" + failed + " hits=" + hitCount + " lookups=" + lookupCount + " active="
+				+ cache.getActiveCount());
+		cache.close();
+
+		final BlobCache reopened = new BlobCache(path, MAX_ENTRIES, MAX_BYTES, false);
+		System.out.println("reopened active=" + reopened.getActiveCount());
+		reopened.close();
+		BlobCache.deleteFiles(path);
+		if (failed) {
+			System.exit(1);
+		}
+	}
+
+	private static byte[] getData(final long key) {
+		final Random random = new Random(key);
+		final byte[] data = new byte[100 + random.nextInt(3000)];
+		random.nextBytes(data);
+		return data;
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.data;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+
+import com.gbnix.imageviewer.common.Utils;
+import com.gbnix.imageviewer.util.GalleryUtils;
+
+// Measures the time and the allocations of the cache keys of
+// ImageCacheService, against the key rebuilt for every call and the blob
+// copied with its key, as they were before the keys were kept on the Path.
+//
+// The current key is reached through reflection. The cost of a reflective
+// call alone is measured and subtracted from the key times. The allocations need the
+// com.sun.management extension of the ThreadMXBean.
+public class CacheKeyBenchmark {
+	private static final int PATH_COUNT = 200;
+	private static final int LOOKUP_COUNT = 500000;
+	private static final int PUT_COUNT = 20000;
+	private static final int IMAGE_SIZE = 40 * 1024;
+	private static final int ROUND_COUNT = 3;
+
+	private static final com.sun.management.ThreadMXBean sThreadBean =
+			(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	private static long sSink;
+
+	public static void main(final String[] args) throws Exception {
+		final Method getCacheKey = ImageCacheService.class.getDeclaredMethod("getCacheKey", Path.class, int.class);
+		getCacheKey.setAccessible(true);
+		final Method identity = CacheKeyBenchmark.class.getDeclaredMethod("identity", Path.class, int.class);
+		final Path[] paths = new Path[PATH_COUNT];
+		for (int i = 0; i < paths.length; i++) {
+			final String uri = "http://example.com/gallery/chapter-12/page-" + i + ".jpg";
+			paths[i] = Path.fromString("/uri/" + URLEncoder.encode(uri, "UTF-8") + "/image%2Fjpeg");
+		}
+		final byte[] image = new byte[IMAGE_SIZE];
+		final int type = MediaItem.TYPE_THUMBNAIL;
+
+		for (int round = 1; round <= ROUND_COUNT; round++) {
+			final Sample oldKey = new Sample();
+			for (int i = 0; i < LOOKUP_COUNT; i++) {
+				final byte[] key = GalleryUtils.getBytes(paths[i % PATH_COUNT].toString() + "+" + type);
+				sSink += Utils.crc64Long(key) + key.length;
+			}
+			oldKey.stop(LOOKUP_COUNT);
+
+			final Sample newKey = new Sample();
+			for (int i = 0; i < LOOKUP_COUNT; i++) {
+				final Object key = getCacheKey.invoke(null, paths[i % PATH_COUNT], type);
+				sSink += ((ImageCacheService.CacheKey) key).mHash;
+			}
+			newKey.stop(LOOKUP_COUNT);
+
+			final Sample reflection = new Sample();
+			for (int i = 0; i < LOOKUP_COUNT; i++) {
+				sSink += identity.invoke(null, paths[i % PATH_COUNT], type).hashCode();
+			}
+			reflection.stop(LOOKUP_COUNT);
+
+			final Sample oldPut = new Sample();
+			for (int i = 0; i < PUT_COUNT; i++) {
+				final byte[] key = GalleryUtils.getBytes(paths[i % PATH_COUNT].toString() + "+" + type);
+				final ByteBuffer buffer = ByteBuffer.allocate(key.length + image.length);
+				buffer.put(key);
+				buffer.put(image);
+				sSink += buffer.array().length;
+			}
+			oldPut.stop(PUT_COUNT);
+
+			final Sample newPut = new Sample();
+			for (int i = 0; i < PUT_COUNT; i++) {
+				final ImageCacheService.CacheKey key = (ImageCacheService.CacheKey) getCacheKey.invoke(null,
+						paths[i % PATH_COUNT], type);
+				final byte[][] parts = new byte[][] { key.mBytes, image };
+				sSink += parts.length;
+			}
+			newPut.stop(PUT_COUNT);
+
+			newKey.subtract(reflection);
+			System.out.println("round " + round);
+			System.out.println("  key:  old " + oldKey + ", new " + newKey);
+			System.out.println("  put:  old " + oldPut + ", new " + newPut + " (with reflection)");
+		}
+	}
+
+	private static Object identity(final Path path, final int type) {
+		return path;
+	}
+
+	// The time and the bytes allocated per operation by the current thread.
+	private static class Sample {
+		private final long mStartTime = System.nanoTime();
+		private final long mStartBytes = getAllocatedBytes();
+		private long mTime;
+		private long mBytes;
+
+		void stop(final int count) {
+			mTime = (System.nanoTime() - mStartTime) / count;
+			mBytes = (getAllocatedBytes() - mStartBytes) / count;
+		}
+
+		void subtract(final Sample overhead) {
+			mTime = Math.max(0, mTime - overhead.mTime);
+			mBytes = Math.max(0, mBytes - overhead.mBytes);
+		}
+
+		@Override
+		public String toString() {
+			return mTime + " ns " + mBytes + " B/op";
+		}
+
+		private static long getAllocatedBytes() {
+			return sThreadBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+	}
+}
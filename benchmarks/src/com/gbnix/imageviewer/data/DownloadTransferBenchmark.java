@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.data;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.HttpURLConnection;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.util.Random;
+
+import com.gbnix.imageviewer.util.ThreadPool;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+// Downloads a 64 MB body from a local HttpServer to a file, with
+// DownloadUtils.dump() and with DownloadUtils.transfer() at several buffer
+// sizes, and prints the CPU time of the downloading thread and the wall time
+// per MB. The first rounds warm up the JIT and are not printed.
+public class DownloadTransferBenchmark {
+	private static final int BODY_SIZE = 64 << 20;
+	private static final int ROUND_COUNT = 4;
+	private static final int WARMUP_ROUND_COUNT = 2;
+	// 0 stands for dump(), the others are the buffer sizes of transfer().
+	private static final int[] BUFFER_SIZES = { 0, 64 * 1024, 128 * 1024, 256 * 1024 };
+
+	public static void main(final String[] args) throws Exception {
+		final byte[] body = new byte[BODY_SIZE];
+		new Random(3).nextBytes(body);
+		final HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+		server.createContext("/img", new HttpHandler() {
+			@Override
+			public void handle(final HttpExchange exchange) throws IOException {
+				exchange.sendResponseHeaders(HttpURLConnection.HTTP_OK, body.length);
+				final OutputStream output = exchange.getResponseBody();
+				output.write(body);
+				output.close();
+			}
+		});
+		server.start();
+		final File file = File.createTempFile("transfer", ".tmp");
+		try {
+			final URL url = new URL("http://127.0.0.1:" + server.getAddress().getPort() + "/img");
+			final ThreadMXBean threadBean = ManagementFactory.getThreadMXBean();
+			for (int round = 0; round < ROUND_COUNT; round++) {
+				for (final int bufferSize : BUFFER_SIZES) {
+					final long startCpu = threadBean.getCurrentThreadCpuTime();
+					final long startTime = System.nanoTime();
+					download(url, file, bufferSize);
+					final long cpu = threadBean.getCurrentThreadCpuTime() - startCpu;
+					final long wall = System.nanoTime() - startTime;
+					if (file.length() != body.length) throw new AssertionError("short file " + file.length());
+					if (round < WARMUP_ROUND_COUNT) {
+						continue;
+					}
+					final String name = bufferSize == 0 ? "dump 4K" : "transfer " + bufferSize / 1024 + "K";
+					final long megabytes = BODY_SIZE >> 20;
+					System.out.println(name + ": cpu " + cpu / 1000 / megabytes + " us/MB, wall " + wall / 1000
+							/ megabytes + " us/MB");
+				}
+			}
+		} finally {
+			file.delete();
+			server.stop(0);
+		}
+	}
+
+	private static void download(final URL url, final File file, final int bufferSize) throws IOException {
+		final HttpURLConnection conn = (HttpURLConnection) url.openConnection();
+		final InputStream input = conn.getInputStream();
+		final FileOutputStream output = new FileOutputStream(file);
+		try {
+			if (bufferSize == 0) {
+				DownloadUtils.dump(ThreadPool.JOB_CONTEXT_STUB, input, output);
+			} else {
+				DownloadUtils.setBufferSize(bufferSize);
+				DownloadUtils.transfer(ThreadPool.JOB_CONTEXT_STUB, input, output.getChannel());
+			}
+		} finally {
+			output.close();
+			input.close();
+			conn.disconnect();
+		}
+	}
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+// Desktop stand-in for the Build of android.jar, whose fields can't be
+// initialized off a device.
+public class Build {
+	public static final String TYPE = "user";
+	public static final String MODEL = "desktop";
+	public static final String DEVICE = "desktop";
+	public static final String ID = "desktop";
+	public static final String BRAND = "desktop";
+	public static final String MANUFACTURER = "desktop";
+
+	public static class VERSION {
+		public static final int SDK_INT = 16;
+		public static final String INCREMENTAL = "desktop";
+		public static final String RELEASE = "4.1";
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.util;
+
+// Desktop stand-in for the Log of android.jar, whose methods only throw.
+// The warnings and errors go to stderr, the rest is dropped.
+public class Log {
+	public static int v(final String tag, final String msg) {
+		return 0;
+	}
+
+	public static int v(final String tag, final String msg, final Throwable tr) {
+		return 0;
+	}
+
+	public static int d(final String tag, final String msg) {
+		return 0;
+	}
+
+	public static int d(final String tag, final String msg, final Throwable tr) {
+		return 0;
+	}
+
+	public static int i(final String tag, final String msg) {
+		return 0;
+	}
+
+	public static int i(final String tag, final String msg, final Throwable tr) {
+		return 0;
+	}
+
+	public static int w(final String tag, final String msg) {
+		return print("W", tag, msg, null);
+	}
+
+	public static int w(final String tag, final String msg, final Throwable tr) {
+		return print("W", tag, msg, tr);
+	}
+
+	public static int w(final String tag, final Throwable tr) {
+		return print("W", tag, "", tr);
+	}
+
+	public static int e(final String tag, final String msg) {
+		return print("E", tag, msg, null);
+	}
+
+	public static int e(final String tag, final String msg, final Throwable tr) {
+		return print("E", tag, msg, tr);
+	}
+
+	private static int print(final String level, final String tag, final String msg, final Throwable tr) {
+		System.err.println(level + " " + tag + ": " + msg + (tr == null ? "" : " " + tr));
+		return 0;
+	}
+}
@@ -37,6 +37,8 @@ public interface GalleryApp {
 
 	public ImageCacheService getImageCacheService();
 
+	public ImageCacheService getScreenNailCacheService();
+
 	public Looper getMainLooper();
 
 	public Resources getResources();
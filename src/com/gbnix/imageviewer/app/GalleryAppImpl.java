@@ -20,10 +20,12 @@ import java.io.File;
 
 import android.app.Application;
 import android.content.Context;
+import android.util.DisplayMetrics;
 
 import com.gbnix.imageviewer.data.DataManager;
 import com.gbnix.imageviewer.data.DownloadCache;
 import com.gbnix.imageviewer.data.ImageCacheService;
+import com.gbnix.imageviewer.data.MediaItem;
 import com.gbnix.imageviewer.util.GalleryUtils;
 import com.gbnix.imageviewer.util.ThreadPool;
 
@@ -31,8 +33,20 @@ public class GalleryAppImpl extends Application implements GalleryApp {
 
 	private static final String DOWNLOAD_FOLDER = "download";
 	private static final long DOWNLOAD_CAPACITY = 64 * 1024 * 1024; // 64M
+	private static final int DOWNLOAD_SEGMENT_COUNT = 4;
+
+	// The screen resolution images are about 20 times larger than the
+	// thumbnails, so they get their own cache instead of evicting the
+	// thumbnails: 2 shards of 4 generations of 20M, 160M in all.
+	private static final String SCREENNAIL_CACHE_FILE = "scrcache";
+	private static final int SCREENNAIL_CACHE_SHARDS = 2;
+	private static final int SCREENNAIL_CACHE_REGIONS = 4;
+	private static final int SCREENNAIL_CACHE_MAX_ENTRIES = 100;
+	private static final int SCREENNAIL_CACHE_MAX_BYTES = 20 * 1024 * 1024;
+	private static final int SCREENNAIL_CACHE_VERSION = 1;
 
 	private ImageCacheService mImageCacheService;
+	private ImageCacheService mScreenNailCacheService;
 	private final Object mLock = new Object();
 	private DataManager mDataManager;
 	private ThreadPool mThreadPool;
@@ -63,6 +77,7 @@ public class GalleryAppImpl extends Application implements GalleryApp {
 
 			if (!cacheDir.isDirectory()) throw new RuntimeException("fail to create: " + cacheDir.getAbsolutePath());
 			mDownloadCache = new DownloadCache(this, cacheDir, DOWNLOAD_CAPACITY);
+			mDownloadCache.setSegmentCount(DOWNLOAD_SEGMENT_COUNT);
 		}
 		return mDownloadCache;
 	}
@@ -78,6 +93,18 @@ public class GalleryAppImpl extends Application implements GalleryApp {
 		}
 	}
 
+	@Override
+	public ImageCacheService getScreenNailCacheService() {
+		synchronized (mLock) {
+			if (mScreenNailCacheService == null) {
+				mScreenNailCacheService = new ImageCacheService(getAndroidContext(), SCREENNAIL_CACHE_FILE,
+						SCREENNAIL_CACHE_MAX_ENTRIES, SCREENNAIL_CACHE_MAX_BYTES, SCREENNAIL_CACHE_VERSION,
+						SCREENNAIL_CACHE_REGIONS, SCREENNAIL_CACHE_SHARDS);
+			}
+			return mScreenNailCacheService;
+		}
+	}
+
 	@Override
 	public synchronized ThreadPool getThreadPool() {
 		if (mThreadPool == null) {
@@ -90,5 +117,19 @@ public class GalleryAppImpl extends Application implements GalleryApp {
 	public void onCreate() {
 		super.onCreate();
 		GalleryUtils.initialize(this);
+		final DisplayMetrics metrics = getResources().getDisplayMetrics();
+		MediaItem.setScreenNailTargetSize(Math.max(metrics.widthPixels, metrics.heightPixels));
+	}
+
+	@Override
+	public void onLowMemory() {
+		super.onLowMemory();
+		MediaItem.getDecodedBitmapCache().clear();
+	}
+
+	@Override
+	public void onTrimMemory(final int level) {
+		super.onTrimMemory(level);
+		MediaItem.getDecodedBitmapCache().trimMemory(level);
 	}
 }
@@ -24,6 +24,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.FutureTask;
 
+import android.app.Activity;
 import android.graphics.Bitmap;
 import android.graphics.BitmapRegionDecoder;
 import android.os.Handler;
@@ -34,6 +35,7 @@ import com.gbnix.imageviewer.common.Utils;
 import com.gbnix.imageviewer.data.BitmapPool;
 import com.gbnix.imageviewer.data.ContentListener;
 import com.gbnix.imageviewer.data.DataManager;
+import com.gbnix.imageviewer.data.DownloadPrefetcher;
 import com.gbnix.imageviewer.data.MediaItem;
 import com.gbnix.imageviewer.data.MediaObject;
 import com.gbnix.imageviewer.data.MediaSet;
@@ -132,6 +134,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 	private final PhotoView mPhotoView;
 
 	private final MediaSet mSource;
+	private final DownloadPrefetcher mPrefetcher;
 	private ReloadTask mReloadTask;
 	private long mSourceVersion = MediaObject.INVALID_DATA_VERSION;
 
@@ -157,6 +160,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 		mItemPath = Utils.checkNotNull(itemPath);
 		mCurrentIndex = indexHint;
 		mThreadPool = activity.getThreadPool();
+		mPrefetcher = new DownloadPrefetcher((GalleryApp) ((Activity) activity).getApplication());
 		mNeedFullImage = true;
 
 		Arrays.fill(mChanges, MediaObject.INVALID_DATA_VERSION);
@@ -317,6 +321,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 		mReloadTask = null;
 
 		mSource.removeContentListener(mSourceListener);
+		mPrefetcher.stop();
 
 		for (final ImageEntry entry : mImageCache.values()) {
 			if (entry.fullImageTask != null) {
@@ -558,11 +563,20 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 			if (path == getPath(mCurrentIndex)) {
 				updateTileProvider(entry);
 				mPhotoView.notifyImageChange(0);
+				startScreenNailRenditionIfNeeded(entry, getItem(mCurrentIndex));
 			}
 		}
 		updateImageRequests();
 	}
 
+	// Makes the screen resolution image of an item which has been viewed, so
+	// the next time it is shown sharp right away.
+	private void startScreenNailRenditionIfNeeded(final ImageEntry entry, final MediaItem item) {
+		if (entry.requestedRendition || item == null || !MediaItem.hasScreenNailType()) return;
+		entry.requestedRendition = true;
+		mThreadPool.submit(new ScreenNailRenditionJob(item));
+	}
+
 	private void updateImageCache() {
 		final HashSet<Path> toBeRemoved = new HashSet<Path>(mImageCache.keySet());
 		for (int i = mActiveStart; i < mActiveEnd; ++i) {
@@ -647,6 +661,26 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 				entry.requestedFullImage = MediaObject.INVALID_DATA_VERSION;
 			}
 		}
+
+		// 3. Download the neighbors of the current item in the background.
+		updatePrefetch(currentIndex);
+	}
+
+	private void updatePrefetch(final int currentIndex) {
+		final int ahead = mPrefetcher.getAheadCount();
+		final int behind = mPrefetcher.getBehindCount();
+		final ArrayList<MediaItem> items = new ArrayList<MediaItem>();
+		for (int i = 1, n = Math.max(ahead, behind); i <= n; ++i) {
+			final MediaItem next = i <= ahead ? getItemInternal(currentIndex + i) : null;
+			if (next != null) {
+				items.add(next);
+			}
+			final MediaItem previous = i <= behind ? getItemInternal(currentIndex - i) : null;
+			if (previous != null) {
+				items.add(previous);
+			}
+		}
+		mPrefetcher.update(items);
 	}
 
 	private void updateScreenNail(final Path path, final Future<ScreenNail> future) {
@@ -812,6 +846,7 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 		public long requestedScreenNail = MediaObject.INVALID_DATA_VERSION;
 		public long requestedFullImage = MediaObject.INVALID_DATA_VERSION;
 		public boolean failToLoad = false;
+		public boolean requestedRendition = false;
 	}
 
 	private static class ImageFetch {
@@ -966,12 +1001,34 @@ public class PhotoDataAdapter implements PhotoPage.Model {
 			// reload.
 			if (isTemporaryItem(mItem)) return newPlaceholderScreenNail(mItem);
 
-			Bitmap bitmap = mItem.requestImage(MediaItem.TYPE_THUMBNAIL).run(jc);
+			// Use the screen resolution image if it has been made when the item
+			// was viewed before.
+			final int type = MediaItem.hasScreenNailType() && mItem.isImageCached(MediaItem.TYPE_SCREENNAIL)
+					? MediaItem.TYPE_SCREENNAIL : MediaItem.TYPE_THUMBNAIL;
+			final Bitmap bitmap = mItem.requestImage(type).run(jc);
 			if (jc.isCancelled()) return null;
-			if (bitmap != null) {
-				bitmap = BitmapUtils.rotateBitmap(bitmap, mItem.getRotation() - mItem.getFullImageRotation(), true);
-			}
-			return bitmap == null ? null : new BitmapScreenNail(bitmap);
+			if (bitmap == null) return null;
+			// The bitmap may be shared, so it is rotated into a new one and
+			// left alone.
+			final Bitmap rotated = BitmapUtils.rotateBitmap(bitmap,
+					mItem.getRotation() - mItem.getFullImageRotation(), false);
+			return new BitmapScreenNail(rotated, rotated == bitmap);
+		}
+	}
+
+	private static class ScreenNailRenditionJob implements Job<Void> {
+		private final MediaItem mItem;
+
+		public ScreenNailRenditionJob(final MediaItem item) {
+			mItem = item;
+		}
+
+		@Override
+		public Void run(final JobContext jc) {
+			if (mItem.isImageCached(MediaItem.TYPE_SCREENNAIL)) return null;
+			// The bitmap may be shared, so it is left to the GC.
+			mItem.requestImage(MediaItem.TYPE_SCREENNAIL).run(jc);
+			return null;
 		}
 	}
 
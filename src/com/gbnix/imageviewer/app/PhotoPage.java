@@ -34,6 +34,7 @@ import android.view.Menu;
 import android.view.MenuInflater;
 
 import com.gbnix.imageviewer.R;
+import com.gbnix.imageviewer.data.CacheWarmer;
 import com.gbnix.imageviewer.data.DataManager;
 import com.gbnix.imageviewer.data.MediaItem;
 import com.gbnix.imageviewer.data.MediaSet;
@@ -88,6 +89,7 @@ public class PhotoPage extends ActivityState implements PhotoView.Listener, Orie
 	// This is the original mSetPathString before adding the camera preview
 	// item.
 	private OrientationManager mOrientationManager;
+	private CacheWarmer mCacheWarmer;
 
 	private final GLView mRootPane = new GLView() {
 
@@ -159,6 +161,7 @@ public class PhotoPage extends ActivityState implements PhotoView.Listener, Orie
 		final PhotoDataAdapter pda = new PhotoDataAdapter(mActivity, mPhotoView, mMediaSet, itemPath, mCurrentIndex);
 		mModel = pda;
 		mPhotoView.setModel(mModel);
+		mCacheWarmer = new CacheWarmer((GalleryApp) ((Activity) mActivity).getApplication());
 
 		pda.setDataListener(new PhotoDataAdapter.DataListener() {
 
@@ -277,6 +280,7 @@ public class PhotoPage extends ActivityState implements PhotoView.Listener, Orie
 
 		mPhotoView.pause();
 		mModel.pause();
+		mCacheWarmer.stop();
 		mHandler.removeMessages(MSG_HIDE_BARS);
 		mActionBar.removeOnMenuVisibilityListener(mMenuVisibilityListener);
 
@@ -355,6 +359,9 @@ public class PhotoPage extends ActivityState implements PhotoView.Listener, Orie
 
 		mModel.resume();
 		mPhotoView.resume();
+		if (mMediaSet != null) {
+			mCacheWarmer.start(mMediaSet, mCurrentIndex);
+		}
 		if (mMenuVisibilityListener == null) {
 			mMenuVisibilityListener = new MyMenuVisibilityListener();
 		}
@@ -16,51 +16,135 @@
 
 // This is an on-disk cache which maps a 64-bits key to a byte array.
 //
-// It consists of three files: one index file and two data files. One of the
-// data files is "active", and the other is "inactive". New entries are
-// appended into the active region until it reaches the size limit. At that
-// point the active file and the inactive file are swapped, and the new active
-// file is truncated to empty (and the index for that file is also cleared).
+// It consists of one index file and K data files (K >= 2, two by default).
+// The data files form a ring of generations: one of them is "active", and the
+// others are "inactive" and hold older entries. New entries are appended into
+// the active region until it reaches the size limit. At that point the next
+// region in the ring, which holds the oldest entries, becomes the active one
+// and is reset to empty (and the index for that file is also cleared). So each
+// flip evicts about 1/K of the cached data. The file is overwritten in place
+// instead of being truncated, so the buffers returned by lookupMapped() never
+// point past the end of a data file.
 // The index is a hash table with linear probing. When the load factor reaches
 // 0.5, it does the same thing like when the size limit is reached.
 //
 // The index file format: (all numbers are stored in little-endian)
-// [0]  Magic number: 0xB3273030
+// [0]  Magic number: 0xB3273031
 // [4]  MaxEntries: Max number of hash entries per region.
 // [8]  MaxBytes: Max number of data bytes per region (including header).
-// [12] ActiveRegion: The active growing region: 0 or 1.
+// [12] ActiveRegion: The active growing region: 0 to K - 1.
 // [16] ActiveEntries: The number of hash entries used in the active region.
 // [20] ActiveBytes: The number of data bytes used in the active region.
 // [24] Version number.
 // [28] Checksum of [0..28).
 // [32] Hash entries for region 0. The size is X = (12 * MaxEntries bytes).
 // [32 + X] Hash entries for region 1. The size is also X.
+// ...
+// [32 + (K - 1) * X] Hash entries for region K - 1.
+//
+// K is not stored in the header, it follows from the length of the index
+// file. A cache written in the original two-region format is still read: it
+// is a K = 2 cache in the legacy format described below.
 //
 // Each hash entry is 12 bytes: 8 bytes key and 4 bytes offset into the data
 // file. The offset is 0 when the slot is free. Note that 0 is a valid value
 // for key. The keys are used directly as index into a hash table, so they
 // should be suitably distributed.
 //
-// Each data file stores data for one region. The data file is concatenated
-// blobs followed by the magic number 0xBD248510.
+// Each data file stores data for one region. The data file header is:
+// [0]  Magic number: 0xBD248520
+// [4]  Generation: incremented by each flip, written into the region it
+//      makes active.
+// and it is followed by concatenated blobs.
+//
+// Every blob header carries its key, offset and generation, so if the index
+// is lost or damaged (for example after a crash) it is rebuilt by scanning
+// the data files, instead of clearing the cache. The region with the highest
+// generation is the active one, and the blobs of a region are its entries
+// up to the first one from an older generation.
 //
 // The blob format:
 // [0]  Key of this blob
 // [8]  Checksum of this blob
 // [12] Offset of this blob
 // [16] Length of this blob (not including header)
-// [20] Blob
+// [20] Generation of the region when the blob was written
+// [24] Blob
+//
+// The format above limits a region to 2G. A cache created with a larger
+// MaxBytes uses the "wide" format instead, which has 64-bit offsets. It is the
+// same except for the following:
+//
+// The wide index file header:
+// [0]  Magic number: 0xB3273065
+// [4]  MaxEntries
+// [8]  MaxBytes (8 bytes)
+// [16] ActiveRegion
+// [20] ActiveEntries
+// [24] ActiveBytes (8 bytes)
+// [32] Version number.
+// [36] Checksum of [0..36).
+// [40] Hash entries for region 0. The size is X = (16 * MaxEntries bytes).
+// ...
+//
+// Each wide hash entry is 16 bytes: 8 bytes key and 8 bytes offset.
+// The wide data file magic number is 0xBD248574.
+//
+// The wide blob format:
+// [0]  Key of this blob
+// [8]  Checksum of this blob
+// [12] Offset of this blob (8 bytes)
+// [20] Length of this blob (not including header)
+// [24] Generation
+// [28] Blob
+//
+// A cache written before the generations were added is in the "legacy"
+// format, and is still read and written in it. It is the same as the format
+// above except for the following:
+// - The index file magic number is 0xB3273030.
+// - The data file header is just the magic number: 0xBD248510.
+// - The blob header has no generation, so it is 20 bytes long.
+// Without generations, a rebuild of the index takes the data file modified
+// last as the active region, and cannot tell the stale blobs left after the
+// current ones in a reused region.
+//
+// The formats coexist: an existing cache is opened in the format it was
+// created with, unless the new MaxBytes does not fit into it (only the wide
+// format takes more than 2G), in which case it is cleared and recreated in
+// the wide format. New caches are never created in the legacy format.
 //
-// Below are the interface for BlobCache. The instance of this class does not
-// support concurrent use by multiple threads.
+// Below are the interface for BlobCache. The instance of this class is safe
+// for concurrent use by multiple threads. Lookups take a shared lock and read
+// the data files with positional reads, so they can run in parallel with each
+// other. Inserts take an exclusive lock and are serialized.
+//
+// Each region also has an in-memory Bloom filter of its keys, built when the
+// cache is opened and kept current by inserts and flips. Most misses are
+// answered by the filters without touching the (mapped) index.
+//
+// A hit in the older half of the ring is not copied into the active region
+// by the lookup itself, since that would turn a read into a disk write. The
+// key is only recorded, and the owner of the cache copies the recorded
+// entries later, in batches, by calling promotePending(), for example from a
+// background thread with a bound on the number of bytes per call.
 //
 // public BlobCache(String path, int maxEntries, int maxBytes, boolean reset) throws IOException;
+// public BlobCache(String path, int maxEntries, long maxBytes, boolean reset, int version, int regionCount) throws IOException;
 // public void insert(long key, byte[] data) throws IOException;
+// public void insert(long key, byte[]... parts) throws IOException;
+// public void insert(long[] keys, byte[][] data, int count) throws IOException;
+// public void insert(long[] keys, byte[][][] parts, int count) throws IOException;
 // public byte[] lookup(long key) throws IOException;
 // public void lookup(LookupRequest req) throws IOException;
+// public ByteBuffer lookupMapped(long key) throws IOException;
+// public int getGeneration();
+// public int getMaxBlobLength();
+// public boolean hasPendingPromotions();
+// public int promotePending(int maxBytes) throws IOException;
 // public void close();
 // public void syncIndex();
 // public void syncAll();
+// public BlobCacheStats getStats();
 // public static void deleteFiles(String path);
 //
 package com.gbnix.imageviewer.common;
@@ -69,9 +153,15 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.zip.Adler32;
 
 import android.util.Log;
@@ -79,8 +169,13 @@ import android.util.Log;
 public class BlobCache implements Closeable {
 	private static final String TAG = "BlobCache";
 
-	private static final int MAGIC_INDEX_FILE = 0xB3273030;
-	private static final int MAGIC_DATA_FILE = 0xBD248510;
+	private static final int MAGIC_INDEX_FILE = 0xB3273031;
+	private static final int MAGIC_DATA_FILE = 0xBD248520;
+	private static final int MAGIC_INDEX_FILE_WIDE = 0xB3273065;
+	private static final int MAGIC_DATA_FILE_WIDE = 0xBD248574;
+	// The legacy format, without generations.
+	private static final int MAGIC_INDEX_FILE_LEGACY = 0xB3273030;
+	private static final int MAGIC_DATA_FILE_LEGACY = 0xBD248510;
 
 	// index header offset
 	private static final int IH_MAGIC = 0;
@@ -93,39 +188,105 @@ public class BlobCache implements Closeable {
 	private static final int IH_CHECKSUM = 28;
 	private static final int INDEX_HEADER_SIZE = 32;
 
-	private static final int DATA_HEADER_SIZE = 4;
+	// wide index header offset
+	private static final int IHW_MAX_BYTES = 8;
+	private static final int IHW_ACTIVE_REGION = 16;
+	private static final int IHW_ACTIVE_ENTRIES = 20;
+	private static final int IHW_ACTIVE_BYTES = 24;
+	private static final int IHW_VERSION = 32;
+	private static final int IHW_CHECKSUM = 36;
+	private static final int INDEX_HEADER_SIZE_WIDE = 40;
+
+	private static final int HASH_ENTRY_SIZE = 12;
+	private static final int HASH_ENTRY_SIZE_WIDE = 16;
+
+	// data file header offset
+	private static final int DH_MAGIC = 0;
+	private static final int DH_GENERATION = 4;
+	private static final int DATA_HEADER_SIZE = 8;
+	private static final int DATA_HEADER_SIZE_LEGACY = 4;
+
+	// The largest region of the narrow formats.
+	private static final long MAX_BYTES_NARROW = Integer.MAX_VALUE;
+
+	private static final int DEFAULT_REGION_COUNT = 2;
 
 	// blob header offset
 	private static final int BH_KEY = 0;
 	private static final int BH_CHECKSUM = 8;
 	private static final int BH_OFFSET = 12;
 	private static final int BH_LENGTH = 16;
-	private static final int BLOB_HEADER_SIZE = 20;
+	private static final int BH_GENERATION = 20;
+	private static final int BLOB_HEADER_SIZE = 24;
+	private static final int BLOB_HEADER_SIZE_LEGACY = 20;
+
+	// wide blob header offset
+	private static final int BHW_LENGTH = 20;
+	private static final int BHW_GENERATION = 24;
+	private static final int BLOB_HEADER_SIZE_WIDE = 28;
+
+	// Chunk size used to checksum mapped blobs.
+	private static final int CHECKSUM_CHUNK_SIZE = 4096;
+
+	// Max number of keys waiting to be promoted, and max number of entries
+	// copied by one promotePending() call.
+	private static final int MAX_PENDING_PROMOTIONS = 256;
+	private static final int PROMOTION_BATCH = 32;
+
+	// Size of the Bloom filter of a region, per hash entry. A region holds at
+	// most maxEntries / 2 keys, so that is 16 bits per key.
+	private static final int FILTER_BITS_PER_ENTRY = 8;
 
 	private RandomAccessFile mIndexFile;
-	private RandomAccessFile mDataFile0;
-	private RandomAccessFile mDataFile1;
+	private final RandomAccessFile[] mDataFiles;
+	private final FileChannel[] mDataChannels;
 	private FileChannel mIndexChannel;
 	private MappedByteBuffer mIndexBuffer;
 
+	private final int mRegionCount;
 	private int mMaxEntries;
-	private int mMaxBytes;
+	private long mMaxBytes;
 	private int mActiveRegion;
 	private int mActiveEntries;
-	private int mActiveBytes;
+	private long mActiveBytes;
 	private int mVersion;
 
+	// The format of the files, and the sizes which depend on it. They are set
+	// by setFormat() while the cache is opened.
+	private boolean mWide;
+	// True for a cache in the legacy format, which has no generations in
+	// its data files.
+	private boolean mLegacy;
+	private int mDataHeaderSize;
+	private int mIndexHeaderSize;
+	private int mHashEntrySize;
+	private int mBlobHeaderSize;
+
+	// Keys of the entries found in the older half of the ring which should be
+	// copied into the active region. Guarded by itself.
+	private final LinkedHashSet<Long> mPendingPromotions = new LinkedHashSet<Long>();
+
 	private RandomAccessFile mActiveDataFile;
-	private RandomAccessFile mInactiveDataFile;
 	private int mActiveHashStart;
-	private int mInactiveHashStart;
-	private final byte[] mIndexHeader = new byte[INDEX_HEADER_SIZE];
-	private final byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE];
+	private final byte[] mIndexHeader = new byte[INDEX_HEADER_SIZE_WIDE];
+	private final byte[] mBlobHeader = new byte[BLOB_HEADER_SIZE_WIDE];
 	private final Adler32 mAdler32 = new Adler32();
 
-	// This method is for one-off lookup. For repeated lookup, use the version
-	// accepting LookupRequest to avoid repeated memory allocation.
-	private final LookupRequest mLookupRequest = new LookupRequest();
+	// Lookups hold the read lock, everything that modifies the index or the
+	// data files holds the write lock. The fields below (mSlotOffset,
+	// mBlobHeader, mAdler32, ...) are only touched with the write lock held.
+	private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+
+	// The generation of the active region. It is incremented each time
+	// flipRegion() reuses a region, before anything is written over the old
+	// blobs.
+	private volatile int mGeneration;
+
+	// The Bloom filters of the keys of each region, indexed by region. They
+	// are read with the read lock held and modified with the write lock held.
+	private BloomFilter[] mFilters;
+
+	private final BlobCacheStats mStats;
 
 	// Tries to look up a key in the specified hash region.
 	// Returns true if the lookup is successful.
@@ -136,7 +297,7 @@ public class BlobCache implements Closeable {
 	// mFileOffset.
 	private int mSlotOffset;
 
-	private int mFileOffset;
+	private long mFileOffset;
 
 	// Creates the cache. Three files will be created:
 	// path + ".idx", path + ".0", and path + ".1"
@@ -144,6 +305,7 @@ public class BlobCache implements Closeable {
 	// them can grow to the size specified by maxBytes. The maxEntries parameter
 	// specifies the maximum number of entries each region can have. If the
 	// "reset" parameter is true, the cache will be cleared before use.
+	// A maxBytes of 2G or more needs the wide format with 64-bit offsets.
 	public BlobCache(final String path, final int maxEntries, final int maxBytes, final boolean reset)
 			throws IOException {
 		this(path, maxEntries, maxBytes, reset, 0);
@@ -151,54 +313,149 @@ public class BlobCache implements Closeable {
 
 	public BlobCache(final String path, final int maxEntries, final int maxBytes, final boolean reset, final int version)
 			throws IOException {
+		this(path, maxEntries, maxBytes, reset, version, DEFAULT_REGION_COUNT);
+	}
+
+	// Creates the cache with a ring of regionCount regions: path + ".idx" and
+	// path + ".0" up to path + "." + (regionCount - 1). An existing cache with
+	// a different number of regions is cleared.
+	public BlobCache(final String path, final int maxEntries, final long maxBytes, final boolean reset,
+			final int version, final int regionCount) throws IOException {
+		this(path, maxEntries, maxBytes, reset, version, regionCount, null);
+	}
+
+	// Same as above, but the statistics are added to the given stats, which
+	// may be shared with other caches. If it is null, the cache has its own.
+	BlobCache(final String path, final int maxEntries, final long maxBytes, final boolean reset,
+			final int version, final int regionCount, final BlobCacheStats stats) throws IOException {
+		if (regionCount < 2) throw new IllegalArgumentException("invalid region count: " + regionCount);
+		mRegionCount = regionCount;
+		mStats = stats != null ? stats : new BlobCacheStats(regionCount);
+		mDataFiles = new RandomAccessFile[regionCount];
+		mDataChannels = new FileChannel[regionCount];
 		mIndexFile = new RandomAccessFile(path + ".idx", "rw");
-		mDataFile0 = new RandomAccessFile(path + ".0", "rw");
-		mDataFile1 = new RandomAccessFile(path + ".1", "rw");
+		for (int i = 0; i < regionCount; ++i) {
+			mDataFiles[i] = new RandomAccessFile(path + "." + i, "rw");
+			mDataChannels[i] = mDataFiles[i].getChannel();
+		}
 		mVersion = version;
 
-		if (!reset && loadIndex()) return;
+		if (reset || !(loadIndex(maxBytes) || rebuildIndex(path, maxEntries, maxBytes))) {
+			resetCache(maxEntries, maxBytes);
 
-		resetCache(maxEntries, maxBytes);
-
-		if (!loadIndex()) {
-			closeAll();
-			throw new IOException("unable to load index");
+			if (!loadIndex(maxBytes)) {
+				closeAll();
+				throw new IOException("unable to load index");
+			}
 		}
+		buildFilters();
 	}
 
 	// Close the cache. All resources are released. No other method should be
 	// called after this is called.
 	@Override
 	public void close() {
-		syncAll();
-		closeAll();
+		mLock.writeLock().lock();
+		try {
+			syncAll();
+			closeAll();
+		} finally {
+			mLock.writeLock().unlock();
+		}
 	}
 
 	// Inserts a (key, data) pair into the cache.
 	public void insert(final long key, final byte[] data) throws IOException {
-		if (DATA_HEADER_SIZE + BLOB_HEADER_SIZE + data.length > mMaxBytes)
-			throw new RuntimeException("blob is too large!");
+		insert(key, new byte[][] { data });
+	}
+
+	// Inserts a (key, data) pair into the cache, where the data is the
+	// concatenation of the parts. The parts are written one after another,
+	// so they don't need to be copied into one array first.
+	public void insert(final long key, final byte[]... parts) throws IOException {
+		final int length = getLength(parts);
+		if (mDataHeaderSize + mBlobHeaderSize + length > mMaxBytes) throw new RuntimeException("blob is too large!");
+
+		final long lockTime = lockWrite();
+		try {
+			if (mActiveBytes + mBlobHeaderSize + length > mMaxBytes || mActiveEntries * 2 >= mMaxEntries) {
+				flipRegion();
+			}
+
+			if (!lookupInternal(key, mActiveHashStart)) {
+				// If we don't have an existing entry with the same key,
+				// increase the entry count.
+				mActiveEntries++;
+			}
 
-		if (mActiveBytes + BLOB_HEADER_SIZE + data.length > mMaxBytes || mActiveEntries * 2 >= mMaxEntries) {
-			flipRegion();
+			insertInternal(key, parts, length);
+			updateIndexHeader();
+			mStats.mInserts.incrementAndGet();
+			mStats.mBytesWritten.addAndGet(mBlobHeaderSize + length);
+		} finally {
+			unlockWrite(lockTime);
 		}
+	}
 
-		if (!lookupInternal(key, mActiveHashStart)) {
-			// If we don't have an existing entry with the same key, increase
-			// the entry count.
-			mActiveEntries++;
-			writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
+	// Inserts the first count (key, data) pairs into the cache. This has the
+	// same effect as calling insert() for each pair in order, but the blobs
+	// which fit into the active region are appended with a single gathering
+	// write and the index header is written once for the whole batch.
+	public void insert(final long[] keys, final byte[][] data, final int count) throws IOException {
+		final byte[][][] parts = new byte[count][][];
+		for (int i = 0; i < count; ++i) {
+			parts[i] = new byte[][] { data[i] };
 		}
+		insert(keys, parts, count);
+	}
 
-		insertInternal(key, data, data.length);
-		updateIndexHeader();
+	// Same as above, but the data of each pair is the concatenation of its
+	// parts, like insert(long, byte[]...).
+	public void insert(final long[] keys, final byte[][][] parts, final int count) throws IOException {
+		final int[] lengths = new int[count];
+		for (int i = 0; i < count; ++i) {
+			lengths[i] = getLength(parts[i]);
+			if (mDataHeaderSize + mBlobHeaderSize + lengths[i] > mMaxBytes)
+				throw new RuntimeException("blob is too large!");
+		}
+
+		final long lockTime = lockWrite();
+		try {
+			int start = 0;
+			while (start < count) {
+				if (mActiveBytes + mBlobHeaderSize + lengths[start] > mMaxBytes || mActiveEntries * 2 >= mMaxEntries) {
+					flipRegion();
+				}
+
+				// Take as many blobs as the active region can hold, assuming
+				// each of them is a new entry.
+				long bytes = mActiveBytes + mBlobHeaderSize + lengths[start];
+				int end = start + 1;
+				while (end < count && bytes + mBlobHeaderSize + lengths[end] <= mMaxBytes
+						&& (mActiveEntries + end - start) * 2 < mMaxEntries) {
+					bytes += mBlobHeaderSize + lengths[end];
+					end++;
+				}
+
+				final long before = mActiveBytes;
+				appendBlobs(keys, parts, lengths, start, end);
+				mStats.mInserts.addAndGet(end - start);
+				mStats.mBytesWritten.addAndGet(mActiveBytes - before);
+				start = end;
+			}
+			updateIndexHeader();
+		} finally {
+			unlockWrite(lockTime);
+		}
 	}
 
+	// This method is for one-off lookup. For repeated lookup, use the version
+	// accepting LookupRequest to avoid repeated memory allocation.
 	public byte[] lookup(final long key) throws IOException {
-		mLookupRequest.key = key;
-		mLookupRequest.buffer = null;
-		if (lookup(mLookupRequest))
-			return mLookupRequest.buffer;
+		final LookupRequest req = new LookupRequest();
+		req.key = key;
+		if (lookup(req))
+			return req.buffer;
 		else
 			return null;
 	}
@@ -213,52 +470,259 @@ public class BlobCache implements Closeable {
 	//
 	// This method tries not to throw IOException even if the data file is
 	// corrupted, but it can still throw IOException if things get strange.
+	//
+	// Several threads may call this method at the same time. The blob is read
+	// with positional reads, so the file pointers of the data files are never
+	// moved by a lookup.
 	public boolean lookup(final LookupRequest req) throws IOException {
-		// Look up in the active region first.
-		if (lookupInternal(req.key, mActiveHashStart)) {
-			if (getBlob(mActiveDataFile, mFileOffset, req)) return true;
-		}
-
-		// We want to copy the data from the inactive file to the active file
-		// if it's available. So we keep the offset of the hash entry so we can
-		// avoid looking it up again.
-		final int insertOffset = mSlotOffset;
-
-		// Look up in the inactive region.
-		if (lookupInternal(req.key, mInactiveHashStart)) {
-			if (getBlob(mInactiveDataFile, mFileOffset, req)) {
-				// If we don't have enough space to insert this blob into
-				// the active file, just return it.
-				if (mActiveBytes + BLOB_HEADER_SIZE + req.length > mMaxBytes || mActiveEntries * 2 >= mMaxEntries)
-					return true;
-				// Otherwise copy it over.
-				mSlotOffset = insertOffset;
-				try {
-					insertInternal(req.key, req.buffer, req.length);
-					mActiveEntries++;
-					writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-					updateIndexHeader();
-				} catch (final Throwable t) {
-					Log.e(TAG, "cannot copy over");
+		final long startTime = System.nanoTime();
+		mLock.readLock().lock();
+		try {
+			// Look up in the active region first, then in the inactive regions
+			// from the newest to the oldest.
+			int hitAge = -1;
+			for (int i = 0; i < mRegionCount; ++i) {
+				final int region = getRegionByAge(i);
+				if (!mFilters[region].mightContain(req.key)) {
+					mStats.mFilterSkips.incrementAndGet();
+					continue;
+				}
+				final long offset = findBlobOffset(req.key, getHashStart(region));
+				if (offset != 0 && getBlob(mDataChannels[region], offset, req)) {
+					hitAge = i;
+					break;
 				}
-				return true;
 			}
+			recordLookup(hitAge, startTime);
+			if (hitAge < 0) return false;
+			recordPromotion(req.key, hitAge);
+			return true;
+		} finally {
+			mLock.readLock().unlock();
 		}
+	}
 
-		return false;
+	// Returns a read-only buffer holding the blob for the given key, or null
+	// if it is not available. Unlike lookup(), the blob is not copied: the
+	// buffer is a memory mapping of the blob in the data file, or a copy if
+	// it cannot be mapped.
+	//
+	// The content of the buffer is only guaranteed until its region is reused
+	// by flipRegion(), so it should be consumed right away rather than kept
+	// around, and checked with getGeneration() once consumed. Like lookup(),
+	// a hit in the older half of the ring is recorded for promotePending().
+	public ByteBuffer lookupMapped(final long key) throws IOException {
+		final long startTime = System.nanoTime();
+		mLock.readLock().lock();
+		try {
+			for (int i = 0; i < mRegionCount; ++i) {
+				final int region = getRegionByAge(i);
+				if (!mFilters[region].mightContain(key)) {
+					mStats.mFilterSkips.incrementAndGet();
+					continue;
+				}
+				final long offset = findBlobOffset(key, getHashStart(region));
+				if (offset == 0) {
+					continue;
+				}
+				ByteBuffer blob = getMappedBlob(region, offset, key);
+				if (blob == null) {
+					// The blob may not be mappable, e.g. when the address
+					// space runs short: read a copy instead.
+					final LookupRequest req = new LookupRequest();
+					req.key = key;
+					if (getBlob(mDataChannels[region], offset, req)) {
+						blob = ByteBuffer.wrap(req.buffer, 0, req.length).slice().asReadOnlyBuffer();
+					}
+				}
+				if (blob != null) {
+					recordLookup(i, startTime);
+					recordPromotion(key, i);
+					return blob;
+				}
+			}
+			recordLookup(-1, startTime);
+			return null;
+		} finally {
+			mLock.readLock().unlock();
+		}
 	}
 
-	public void syncAll() {
-		syncIndex();
+	// Returns a number which changes each time a region is reused. A buffer
+	// returned by lookupMapped() after this returned n has not been written
+	// over as long as this still returns n.
+	public int getGeneration() {
+		return mGeneration;
+	}
+
+	// Returns the length of the largest blob insert() accepts. Larger ones
+	// make it throw a RuntimeException.
+	public int getMaxBlobLength() {
+		return (int) Math.min(Integer.MAX_VALUE, mMaxBytes - mDataHeaderSize - mBlobHeaderSize);
+	}
+
+	// Returns true if some lookup hits are waiting to be copied into the
+	// active region by promotePending().
+	public boolean hasPendingPromotions() {
+		synchronized (mPendingPromotions) {
+			return !mPendingPromotions.isEmpty();
+		}
+	}
+
+	// Copies the entries recorded by lookups into the active region, in the
+	// order they were hit. It stops after about maxBytes bytes (at least one
+	// entry is copied), so the caller can bound the write bandwidth by how
+	// often it calls this method. Returns the number of bytes written.
+	//
+	// A promotion never flips the active region: the entries which do not fit
+	// into it any more are dropped, as are the entries which have been
+	// inserted again or evicted since they were hit.
+	public int promotePending(final int maxBytes) throws IOException {
+		final long[] keys = new long[PROMOTION_BATCH];
+		final byte[][][] blobs = new byte[PROMOTION_BATCH][][];
+		final int[] lengths = new int[PROMOTION_BATCH];
+		int count = 0;
+		long bytes = 0;
+
+		// Read the blobs with the shared lock, so lookups are not blocked
+		// while we wait for the disk.
+		mLock.readLock().lock();
 		try {
-			mDataFile0.getFD().sync();
-		} catch (final Throwable t) {
-			Log.w(TAG, "sync data file 0 failed", t);
+			while (count < PROMOTION_BATCH && bytes < maxBytes) {
+				final LookupRequest req = new LookupRequest();
+				synchronized (mPendingPromotions) {
+					final Iterator<Long> it = mPendingPromotions.iterator();
+					if (!it.hasNext()) {
+						break;
+					}
+					req.key = it.next();
+					it.remove();
+				}
+				if (!readInactiveBlob(req)) {
+					continue;
+				}
+				keys[count] = req.key;
+				blobs[count] = new byte[][] { req.buffer.length == req.length ? req.buffer
+						: Arrays.copyOf(req.buffer, req.length) };
+				lengths[count] = req.length;
+				bytes += mBlobHeaderSize + req.length;
+				count++;
+			}
+		} finally {
+			mLock.readLock().unlock();
 		}
+		if (count == 0) return 0;
+
+		// The state may have changed since we released the read lock: check
+		// again before copying.
+		final long lockTime = lockWrite();
 		try {
-			mDataFile1.getFD().sync();
-		} catch (final Throwable t) {
-			Log.w(TAG, "sync data file 1 failed", t);
+			int n = 0;
+			long activeBytes = mActiveBytes;
+			int activeEntries = mActiveEntries;
+			for (int i = 0; i < count; ++i) {
+				if (lookupInternal(keys[i], mActiveHashStart)) {
+					continue;
+				}
+				final int length = lengths[i];
+				if (activeBytes + mBlobHeaderSize + length > mMaxBytes || activeEntries * 2 >= mMaxEntries) {
+					break;
+				}
+				keys[n] = keys[i];
+				blobs[n] = blobs[i];
+				lengths[n] = length;
+				activeBytes += mBlobHeaderSize + length;
+				activeEntries++;
+				n++;
+			}
+			if (n == 0) return 0;
+			final int written = (int) (activeBytes - mActiveBytes);
+			appendBlobs(keys, blobs, lengths, 0, n);
+			updateIndexHeader();
+			mStats.mPromotions.addAndGet(n);
+			mStats.mPromotedBytes.addAndGet(written);
+			return written;
+		} finally {
+			unlockWrite(lockTime);
+		}
+	}
+
+	// Returns the statistics of this cache. The returned object is updated as
+	// the cache is used.
+	public BlobCacheStats getStats() {
+		return mStats;
+	}
+
+	private static int getLength(final byte[][] parts) {
+		int length = 0;
+		for (final byte[] part : parts) {
+			length += part.length;
+		}
+		return length;
+	}
+
+	// Takes the write lock. Returns the time it was taken, which should be
+	// passed to unlockWrite().
+	private long lockWrite() {
+		mLock.writeLock().lock();
+		return System.nanoTime();
+	}
+
+	private void unlockWrite(final long lockTime) {
+		mStats.mWriteLockTime.addNanos(System.nanoTime() - lockTime);
+		mLock.writeLock().unlock();
+	}
+
+	// Records the result of a lookup: the age of the region it hit, or -1 for
+	// a miss.
+	private void recordLookup(final int hitAge, final long startTime) {
+		if (hitAge < 0) {
+			mStats.mMisses.incrementAndGet();
+		} else {
+			mStats.mHits.incrementAndGet(hitAge);
+		}
+		mStats.mLookupTime.addNanos(System.nanoTime() - startTime);
+	}
+
+	// Records a lookup hit in the region of the given age. Only the hits in
+	// the older half of the ring are promoted: they are the ones about to be
+	// evicted. Copying every inactive hit would fill the ring with duplicates
+	// when there are more than two regions.
+	private void recordPromotion(final long key, final int age) {
+		if (age < (mRegionCount + 1) / 2) return;
+		synchronized (mPendingPromotions) {
+			if (mPendingPromotions.size() < MAX_PENDING_PROMOTIONS) {
+				mPendingPromotions.add(key);
+			}
+		}
+	}
+
+	// Reads the blob for req.key from an inactive region. Returns false if it
+	// is already in the active region or is not found. Must be called with
+	// the read lock held.
+	private boolean readInactiveBlob(final LookupRequest req) throws IOException {
+		if (mFilters[mActiveRegion].mightContain(req.key) && findBlobOffset(req.key, mActiveHashStart) != 0) {
+			return false;
+		}
+		for (int i = 1; i < mRegionCount; ++i) {
+			final int region = getRegionByAge(i);
+			if (!mFilters[region].mightContain(req.key)) {
+				continue;
+			}
+			final long offset = findBlobOffset(req.key, getHashStart(region));
+			if (offset != 0 && getBlob(mDataChannels[region], offset, req)) return true;
+		}
+		return false;
+	}
+
+	public void syncAll() {
+		syncIndex();
+		for (int i = 0; i < mRegionCount; ++i) {
+			try {
+				mDataFiles[i].getFD().sync();
+			} catch (final Throwable t) {
+				Log.w(TAG, "sync data file " + i + " failed", t);
+			}
 		}
 	}
 
@@ -274,7 +738,7 @@ public class BlobCache implements Closeable {
 	private void clearHash(final int hashStart) {
 		final byte[] zero = new byte[1024];
 		mIndexBuffer.position(hashStart);
-		for (int count = mMaxEntries * 12; count > 0;) {
+		for (int count = mMaxEntries * mHashEntrySize; count > 0;) {
 			final int todo = Math.min(count, 1024);
 			mIndexBuffer.put(zero, 0, todo);
 			count -= todo;
@@ -284,24 +748,26 @@ public class BlobCache implements Closeable {
 	private void closeAll() {
 		closeSilently(mIndexChannel);
 		closeSilently(mIndexFile);
-		closeSilently(mDataFile0);
-		closeSilently(mDataFile1);
+		for (int i = 0; i < mRegionCount; ++i) {
+			closeSilently(mDataChannels[i]);
+			closeSilently(mDataFiles[i]);
+		}
 	}
 
-	// Flip the active region and the inactive region.
+	// Make the oldest region the active region, dropping its content.
 	private void flipRegion() throws IOException {
-		mActiveRegion = 1 - mActiveRegion;
+		mGeneration++;
+		mActiveRegion = (mActiveRegion + 1) % mRegionCount;
+		writeDataHeader(mActiveRegion, mGeneration);
 		mActiveEntries = 0;
-		mActiveBytes = DATA_HEADER_SIZE;
-
-		writeInt(mIndexHeader, IH_ACTIVE_REGION, mActiveRegion);
-		writeInt(mIndexHeader, IH_ACTIVE_ENTRIES, mActiveEntries);
-		writeInt(mIndexHeader, IH_ACTIVE_BYTES, mActiveBytes);
+		mActiveBytes = mDataHeaderSize;
 		updateIndexHeader();
 
 		setActiveVariables();
 		clearHash(mActiveHashStart);
+		mFilters[mActiveRegion].clear();
 		syncIndex();
+		mStats.mFlips.incrementAndGet();
 	}
 
 	// Copies the blob for the specified offset in the specified file to
@@ -310,31 +776,19 @@ public class BlobCache implements Closeable {
 	// Returns false if the blob is not available (either the index file is
 	// not sync with the data file, or one of them is corrupted). The length
 	// of the blob is stored in the req.length variable.
-	private boolean getBlob(final RandomAccessFile file, final int offset, final LookupRequest req) throws IOException {
-		final byte[] header = mBlobHeader;
-		final long oldPosition = file.getFilePointer();
+	//
+	// This is called with only the read lock held, so it must not touch any
+	// shared scratch state: the header buffer and the checksum are per call.
+	private boolean getBlob(final FileChannel channel, final long offset, final LookupRequest req) throws IOException {
+		final byte[] header = new byte[mBlobHeaderSize];
 		try {
-			file.seek(offset);
-			if (file.read(header) != BLOB_HEADER_SIZE) {
+			if (readFully(channel, ByteBuffer.wrap(header), offset) != mBlobHeaderSize) {
 				Log.w(TAG, "cannot read blob header");
 				return false;
 			}
-			final long blobKey = readLong(header, BH_KEY);
-			if (blobKey != req.key) {
-				Log.w(TAG, "blob key does not match: " + blobKey);
-				return false;
-			}
+			final int length = checkBlobHeader(header, offset, req.key);
+			if (length < 0) return false;
 			final int sum = readInt(header, BH_CHECKSUM);
-			final int blobOffset = readInt(header, BH_OFFSET);
-			if (blobOffset != offset) {
-				Log.w(TAG, "blob offset does not match: " + blobOffset);
-				return false;
-			}
-			final int length = readInt(header, BH_LENGTH);
-			if (length < 0 || length > mMaxBytes - offset - BLOB_HEADER_SIZE) {
-				Log.w(TAG, "invalid blob length: " + length);
-				return false;
-			}
 			if (req.buffer == null || req.buffer.length < length) {
 				req.buffer = new byte[length];
 			}
@@ -342,74 +796,236 @@ public class BlobCache implements Closeable {
 			final byte[] blob = req.buffer;
 			req.length = length;
 
-			if (file.read(blob, 0, length) != length) {
+			if (readFully(channel, ByteBuffer.wrap(blob, 0, length), offset + mBlobHeaderSize) != length) {
 				Log.w(TAG, "cannot read blob data");
 				return false;
 			}
-			if (checkSum(blob, 0, length) != sum) {
+			final Adler32 adler32 = new Adler32();
+			adler32.update(blob, 0, length);
+			if ((int) adler32.getValue() != sum) {
 				Log.w(TAG, "blob checksum does not match: " + sum);
+				mStats.mChecksumFailures.incrementAndGet();
 				return false;
 			}
 			return true;
 		} catch (final Throwable t) {
 			Log.e(TAG, "getBlob failed.", t);
 			return false;
-		} finally {
-			file.seek(oldPosition);
+		}
+	}
+
+	// Returns a read-only mapping of the blob at the specified offset in the
+	// specified region, or null if the blob is not available. The same checks
+	// as getBlob() are done.
+	//
+	// Only the blob itself is mapped, so the address space taken follows the
+	// buffers in use rather than the size of the cache. A blob which does not
+	// lie within the file is not available: nothing is written to the data
+	// files from here, as only the read lock is held.
+	private ByteBuffer getMappedBlob(final int region, final long offset, final long key) {
+		try {
+			final FileChannel channel = mDataChannels[region];
+			final byte[] header = new byte[mBlobHeaderSize];
+			if (readFully(channel, ByteBuffer.wrap(header), offset) != mBlobHeaderSize) {
+				Log.w(TAG, "cannot read blob header");
+				return null;
+			}
+			final int length = checkBlobHeader(header, offset, key);
+			if (length < 0) return null;
+			final int sum = readInt(header, BH_CHECKSUM);
+
+			final long dataStart = offset + mBlobHeaderSize;
+			if (dataStart + length > channel.size()) {
+				Log.w(TAG, "cannot read blob data");
+				return null;
+			}
+			final MappedByteBuffer slice = channel.map(MapMode.READ_ONLY, dataStart, length);
+
+			final ByteBuffer blob = slice.duplicate();
+			final Adler32 adler32 = new Adler32();
+			final byte[] chunk = new byte[Math.min(length, CHECKSUM_CHUNK_SIZE)];
+			while (blob.hasRemaining()) {
+				final int n = Math.min(chunk.length, blob.remaining());
+				blob.get(chunk, 0, n);
+				adler32.update(chunk, 0, n);
+			}
+			if ((int) adler32.getValue() != sum) {
+				Log.w(TAG, "blob checksum does not match: " + sum);
+				mStats.mChecksumFailures.incrementAndGet();
+				return null;
+			}
+			return slice.asReadOnlyBuffer();
+		} catch (final Throwable t) {
+			Log.e(TAG, "getMappedBlob failed.", t);
+			return null;
+		}
+	}
+
+	// Checks the header of the blob at the specified offset. Returns the
+	// length of the blob, or -1 if the header does not match the key and the
+	// offset or has an invalid length.
+	private int checkBlobHeader(final byte[] header, final long offset, final long key) {
+		final long blobKey = readLong(header, BH_KEY);
+		if (blobKey != key) {
+			Log.w(TAG, "blob key does not match: " + blobKey);
+			return -1;
+		}
+		final long blobOffset = mWide ? readLong(header, BH_OFFSET) : readInt(header, BH_OFFSET);
+		if (blobOffset != offset) {
+			Log.w(TAG, "blob offset does not match: " + blobOffset);
+			return -1;
+		}
+		final int length = readInt(header, mWide ? BHW_LENGTH : BH_LENGTH);
+		if (length < 0 || length > mMaxBytes - offset - mBlobHeaderSize) {
+			Log.w(TAG, "invalid blob length: " + length);
+			return -1;
+		}
+		return length;
+	}
+
+	private void writeBlobHeader(final byte[] header, final int start, final long key, final int sum,
+			final long offset, final int length) {
+		writeLong(header, start + BH_KEY, key);
+		writeInt(header, start + BH_CHECKSUM, sum);
+		if (mWide) {
+			writeLong(header, start + BH_OFFSET, offset);
+			writeInt(header, start + BHW_LENGTH, length);
+			writeInt(header, start + BHW_GENERATION, mGeneration);
+		} else {
+			writeInt(header, start + BH_OFFSET, (int) offset);
+			writeInt(header, start + BH_LENGTH, length);
+			if (!mLegacy) {
+				writeInt(header, start + BH_GENERATION, mGeneration);
+			}
 		}
 	}
 
 	// Appends the data to the active file. It also updates the hash entry.
 	// The proper hash entry (suitable for insertion or replacement) must be
 	// pointed by mSlotOffset.
-	private void insertInternal(final long key, final byte[] data, final int length) throws IOException {
+	private void insertInternal(final long key, final byte[][] parts, final int length) throws IOException {
 		final byte[] header = mBlobHeader;
-		final int sum = checkSum(data);
-		writeLong(header, BH_KEY, key);
-		writeInt(header, BH_CHECKSUM, sum);
-		writeInt(header, BH_OFFSET, mActiveBytes);
-		writeInt(header, BH_LENGTH, length);
-		mActiveDataFile.write(header);
-		mActiveDataFile.write(data, 0, length);
+		final int sum = checkSum(parts);
+		writeBlobHeader(header, 0, key, sum, mActiveBytes, length);
+		mActiveDataFile.write(header, 0, mBlobHeaderSize);
+		for (final byte[] part : parts) {
+			mActiveDataFile.write(part);
+		}
+
+		writeSlot(mSlotOffset, key, mActiveBytes);
+		mFilters[mActiveRegion].add(key);
+		mActiveBytes += mBlobHeaderSize + length;
+	}
+
+	// Appends the blobs [start, end) to the active region with one gathering
+	// write and then points their index slots at them. Each blob is the
+	// concatenation of its parts, and lengths holds the total lengths. The
+	// caller must make sure they all fit into the active region.
+	private void appendBlobs(final long[] keys, final byte[][][] parts, final int[] lengths, final int start,
+			final int end) throws IOException {
+		final int n = end - start;
+		int bufferCount = n;
+		for (int i = start; i < end; ++i) {
+			bufferCount += parts[i].length;
+		}
+		final byte[] headers = new byte[n * mBlobHeaderSize];
+		final ByteBuffer[] buffers = new ByteBuffer[bufferCount];
+		int b = 0;
+		long offset = mActiveBytes;
+		for (int i = 0; i < n; ++i) {
+			final byte[][] blob = parts[start + i];
+			final int length = lengths[start + i];
+			final int h = i * mBlobHeaderSize;
+			writeBlobHeader(headers, h, keys[start + i], checkSum(blob), offset, length);
+			buffers[b++] = ByteBuffer.wrap(headers, h, mBlobHeaderSize);
+			for (final byte[] part : blob) {
+				buffers[b++] = ByteBuffer.wrap(part);
+			}
+			offset += mBlobHeaderSize + length;
+		}
+
+		final FileChannel channel = mDataChannels[mActiveRegion];
+		try {
+			long remaining = offset - mActiveBytes;
+			while (remaining > 0) {
+				remaining -= channel.write(buffers);
+			}
+		} catch (final IOException e) {
+			// Nothing has been indexed yet, so just put the file pointer back
+			// where the next blob should go.
+			mActiveDataFile.seek(mActiveBytes);
+			throw e;
+		}
 
-		mIndexBuffer.putLong(mSlotOffset, key);
-		mIndexBuffer.putInt(mSlotOffset + 8, mActiveBytes);
-		mActiveBytes += BLOB_HEADER_SIZE + length;
-		writeInt(mIndexHeader, IH_ACTIVE_BYTES, mActiveBytes);
+		long blobOffset = mActiveBytes;
+		for (int i = 0; i < n; ++i) {
+			final long key = keys[start + i];
+			if (!lookupInternal(key, mActiveHashStart)) {
+				mActiveEntries++;
+			}
+			writeSlot(mSlotOffset, key, blobOffset);
+			mFilters[mActiveRegion].add(key);
+			blobOffset += mBlobHeaderSize + lengths[start + i];
+		}
+		mActiveBytes = offset;
 	}
 
 	// Returns true if loading index is successful. After this method is called,
 	// mIndexHeader and index header in file should be kept sync.
-	private boolean loadIndex() {
+	// A narrow cache is not loaded if maxBytes needs the wide format.
+	private boolean loadIndex(final long maxBytes) {
 		try {
 			mIndexFile.seek(0);
-			mDataFile0.seek(0);
-			mDataFile1.seek(0);
+			for (int i = 0; i < mRegionCount; ++i) {
+				mDataFiles[i].seek(0);
+			}
 
 			final byte[] buf = mIndexHeader;
-			if (mIndexFile.read(buf) != INDEX_HEADER_SIZE) {
+			if (mIndexFile.read(buf, 0, 4) != 4) {
 				Log.w(TAG, "cannot read header");
 				return false;
 			}
 
-			if (readInt(buf, IH_MAGIC) != MAGIC_INDEX_FILE) {
+			final int magic = readInt(buf, IH_MAGIC);
+			if (magic == MAGIC_INDEX_FILE_WIDE) {
+				setFormat(true, false);
+			} else if (magic == MAGIC_INDEX_FILE || magic == MAGIC_INDEX_FILE_LEGACY) {
+				if (needsWideFormat(maxBytes)) {
+					Log.w(TAG, "max bytes too large for the cache format");
+					return false;
+				}
+				setFormat(false, magic == MAGIC_INDEX_FILE_LEGACY);
+			} else {
 				Log.w(TAG, "cannot read header magic");
 				return false;
 			}
 
-			if (readInt(buf, IH_VERSION) != mVersion) {
+			if (mIndexFile.read(buf, 4, mIndexHeaderSize - 4) != mIndexHeaderSize - 4) {
+				Log.w(TAG, "cannot read header");
+				return false;
+			}
+
+			if (readInt(buf, mWide ? IHW_VERSION : IH_VERSION) != mVersion) {
 				Log.w(TAG, "version mismatch");
 				return false;
 			}
 
 			mMaxEntries = readInt(buf, IH_MAX_ENTRIES);
-			mMaxBytes = readInt(buf, IH_MAX_BYTES);
-			mActiveRegion = readInt(buf, IH_ACTIVE_REGION);
-			mActiveEntries = readInt(buf, IH_ACTIVE_ENTRIES);
-			mActiveBytes = readInt(buf, IH_ACTIVE_BYTES);
+			if (mWide) {
+				mMaxBytes = readLong(buf, IHW_MAX_BYTES);
+				mActiveRegion = readInt(buf, IHW_ACTIVE_REGION);
+				mActiveEntries = readInt(buf, IHW_ACTIVE_ENTRIES);
+				mActiveBytes = readLong(buf, IHW_ACTIVE_BYTES);
+			} else {
+				mMaxBytes = readInt(buf, IH_MAX_BYTES);
+				mActiveRegion = readInt(buf, IH_ACTIVE_REGION);
+				mActiveEntries = readInt(buf, IH_ACTIVE_ENTRIES);
+				mActiveBytes = readInt(buf, IH_ACTIVE_BYTES);
+			}
 
-			final int sum = readInt(buf, IH_CHECKSUM);
-			if (checkSum(buf, 0, IH_CHECKSUM) != sum) {
+			final int checksumOffset = mWide ? IHW_CHECKSUM : IH_CHECKSUM;
+			final int sum = readInt(buf, checksumOffset);
+			if (checkSum(buf, 0, checksumOffset) != sum) {
 				Log.w(TAG, "header checksum does not match");
 				return false;
 			}
@@ -423,7 +1039,7 @@ public class BlobCache implements Closeable {
 				Log.w(TAG, "invalid max bytes");
 				return false;
 			}
-			if (mActiveRegion != 0 && mActiveRegion != 1) {
+			if (mActiveRegion < 0 || mActiveRegion >= mRegionCount) {
 				Log.w(TAG, "invalid active region");
 				return false;
 			}
@@ -431,47 +1047,206 @@ public class BlobCache implements Closeable {
 				Log.w(TAG, "invalid active entries");
 				return false;
 			}
-			if (mActiveBytes < DATA_HEADER_SIZE || mActiveBytes > mMaxBytes) {
+			if (mActiveBytes < mDataHeaderSize || mActiveBytes > mMaxBytes) {
 				Log.w(TAG, "invalid active bytes");
 				return false;
 			}
-			if (mIndexFile.length() != INDEX_HEADER_SIZE + mMaxEntries * 12 * 2) {
+			// This also catches a cache created with another region count.
+			if (mIndexFile.length() != getIndexFileLength(mMaxEntries)) {
 				Log.w(TAG, "invalid index file length");
 				return false;
 			}
 
 			// Make sure data file has magic
-			final byte[] magic = new byte[4];
-			if (mDataFile0.read(magic) != 4) {
-				Log.w(TAG, "cannot read data file magic");
-				return false;
+			final byte[] dataHeader = new byte[mDataHeaderSize];
+			for (int i = 0; i < mRegionCount; ++i) {
+				if (mDataFiles[i].read(dataHeader) != mDataHeaderSize) {
+					Log.w(TAG, "cannot read data file header");
+					return false;
+				}
+				if (readInt(dataHeader, DH_MAGIC) != getDataFileMagic()) {
+					Log.w(TAG, "invalid data file magic");
+					return false;
+				}
+				if (i == mActiveRegion && !mLegacy) {
+					mGeneration = readInt(dataHeader, DH_GENERATION);
+				}
 			}
-			if (readInt(magic, 0) != MAGIC_DATA_FILE) {
-				Log.w(TAG, "invalid data file magic");
+
+			// Map index file to memory
+			mIndexChannel = mIndexFile.getChannel();
+			mIndexBuffer = mIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0, mIndexFile.length());
+			mIndexBuffer.order(ByteOrder.LITTLE_ENDIAN);
+
+			setActiveVariables();
+			// Discard whatever was written after the last index update.
+			mActiveDataFile.setLength(mActiveBytes);
+			return true;
+		} catch (final IOException ex) {
+			Log.e(TAG, "loadIndex failed.", ex);
+			return false;
+		}
+	}
+
+	// Rebuilds the index from the blobs in the data files. This is used when
+	// the index cannot be loaded but the data files may still be fine, e.g.
+	// the index has been truncated or was not completely written before a
+	// crash. The format is the one of the data files. Returns false if the
+	// cache should be reset instead: the data files are not there or not in
+	// the same format, or the index says they are from another version.
+	private boolean rebuildIndex(final String path, final int maxEntries, final long maxBytes) {
+		try {
+			final byte[] magic = new byte[4];
+			if (readFully(mDataChannels[0], ByteBuffer.wrap(magic), 0) != 4) return false;
+			final int dataMagic = readInt(magic, DH_MAGIC);
+			if (dataMagic == MAGIC_DATA_FILE_WIDE) {
+				setFormat(true, false);
+			} else if ((dataMagic == MAGIC_DATA_FILE || dataMagic == MAGIC_DATA_FILE_LEGACY)
+					&& !needsWideFormat(maxBytes)) {
+				setFormat(false, dataMagic == MAGIC_DATA_FILE_LEGACY);
+			} else {
 				return false;
 			}
-			if (mDataFile1.read(magic) != 4) {
-				Log.w(TAG, "cannot read data file magic");
-				return false;
+
+			final byte[] buf = mIndexHeader;
+			if (mIndexFile.length() >= mIndexHeaderSize) {
+				mIndexFile.seek(0);
+				mIndexFile.readFully(buf, 0, mIndexHeaderSize);
+				final int checksumOffset = mWide ? IHW_CHECKSUM : IH_CHECKSUM;
+				if (readInt(buf, IH_MAGIC) == getIndexFileMagic()
+						&& checkSum(buf, 0, checksumOffset) == readInt(buf, checksumOffset)
+						&& readInt(buf, mWide ? IHW_VERSION : IH_VERSION) != mVersion) {
+					return false;
+				}
 			}
-			if (readInt(magic, 0) != MAGIC_DATA_FILE) {
-				Log.w(TAG, "invalid data file magic");
-				return false;
+
+			// The index does not tell which region is the active one any more,
+			// take the one of the latest generation. The legacy format has
+			// no generations, there it is the data file written last.
+			final byte[] dataHeader = new byte[mDataHeaderSize];
+			final int[] generations = new int[mRegionCount];
+			int activeRegion = 0;
+			long newest = Long.MIN_VALUE;
+			for (int i = 0; i < mRegionCount; ++i) {
+				if (readFully(mDataChannels[i], ByteBuffer.wrap(dataHeader), 0) != mDataHeaderSize
+						|| readInt(dataHeader, DH_MAGIC) != getDataFileMagic()) {
+					return false;
+				}
+				if (mLegacy) {
+					final long modified = new File(path + "." + i).lastModified();
+					if (modified > newest) {
+						newest = modified;
+						activeRegion = i;
+					}
+				} else {
+					generations[i] = readInt(dataHeader, DH_GENERATION);
+					if (generations[i] > generations[activeRegion]) {
+						activeRegion = i;
+					}
+				}
 			}
 
-			// Map index file to memory
+			mIndexFile.setLength(0);
+			mIndexFile.setLength(getIndexFileLength(maxEntries));
+			mMaxEntries = maxEntries;
+			mMaxBytes = maxBytes;
 			mIndexChannel = mIndexFile.getChannel();
 			mIndexBuffer = mIndexChannel.map(FileChannel.MapMode.READ_WRITE, 0, mIndexFile.length());
 			mIndexBuffer.order(ByteOrder.LITTLE_ENDIAN);
 
+			int recovered = 0;
+			int activeEntries = 0;
+			long activeBytes = mDataHeaderSize;
+			for (int i = 0; i < mRegionCount; ++i) {
+				mActiveRegion = i;
+				mActiveHashStart = getHashStart(i);
+				scanRegion(i, generations[i]);
+				recovered += mActiveEntries;
+				if (i == activeRegion) {
+					activeEntries = mActiveEntries;
+					activeBytes = mActiveBytes;
+				}
+			}
+
+			mActiveRegion = activeRegion;
+			mActiveEntries = activeEntries;
+			mActiveBytes = activeBytes;
+			mGeneration = generations[activeRegion];
+			updateIndexHeader();
+			syncIndex();
+
 			setActiveVariables();
+			mActiveDataFile.setLength(mActiveBytes);
+			Log.w(TAG, "index rebuilt, " + recovered + " entries recovered");
 			return true;
 		} catch (final IOException ex) {
-			Log.e(TAG, "loadIndex failed.", ex);
+			Log.e(TAG, "rebuildIndex failed.", ex);
 			return false;
 		}
 	}
 
+	// Indexes the blobs of the given region from its beginning, until the
+	// first blob which is not intact or not of the given generation. The
+	// number of entries and the end of the last indexed blob are left in
+	// mActiveEntries and mActiveBytes.
+	//
+	// A region is reused without being truncated, so the blobs of an older
+	// generation may follow the current ones. They must not be indexed: a
+	// stale blob would replace the current entry for its key. The blobs of
+	// the legacy format carry no generation, so the scan of such a cache
+	// can only stop at the first blob which is not intact.
+	private void scanRegion(final int region, final int generation) throws IOException {
+		final FileChannel channel = mDataChannels[region];
+		final byte[] header = new byte[mBlobHeaderSize];
+		final LookupRequest req = new LookupRequest();
+		mActiveEntries = 0;
+		mActiveBytes = mDataHeaderSize;
+		while (mActiveEntries * 2 < mMaxEntries) {
+			final long offset = mActiveBytes;
+			if (offset > mMaxBytes - mBlobHeaderSize
+					|| readFully(channel, ByteBuffer.wrap(header), offset) != mBlobHeaderSize) {
+				break;
+			}
+			if (!mLegacy && readInt(header, mWide ? BHW_GENERATION : BH_GENERATION) != generation) {
+				break;
+			}
+			req.key = readLong(header, BH_KEY);
+			if (!getBlob(channel, offset, req)) {
+				break;
+			}
+			if (!lookupInternal(req.key, mActiveHashStart)) {
+				mActiveEntries++;
+			}
+			writeSlot(mSlotOffset, req.key, offset);
+			mActiveBytes = offset + mBlobHeaderSize + req.length;
+		}
+	}
+
+	// Returns the data file offset of the blob for the given key in the
+	// specified hash region, or 0 if there is no such entry. Unlike
+	// lookupInternal() this does not modify any state, so it can be called
+	// with only the read lock held.
+	private long findBlobOffset(final long key, final int hashStart) {
+		int slot = (int) (key % mMaxEntries);
+		if (slot < 0) {
+			slot += mMaxEntries;
+		}
+		final int slotBegin = slot;
+		while (true) {
+			final int offset = hashStart + slot * mHashEntrySize;
+			final long candidateKey = mIndexBuffer.getLong(offset);
+			final long candidateOffset = readSlotOffset(offset);
+			if (candidateOffset == 0) return 0;
+			if (candidateKey == key) return candidateOffset;
+			if (++slot >= mMaxEntries) {
+				slot = 0;
+			}
+			// The hash region is full, which means the index is corrupted.
+			// It is repaired by lookupInternal() on the next insert.
+			if (slot == slotBegin) return 0;
+		}
+	}
+
 	private boolean lookupInternal(final long key, final int hashStart) {
 		int slot = (int) (key % mMaxEntries);
 		if (slot < 0) {
@@ -479,9 +1254,9 @@ public class BlobCache implements Closeable {
 		}
 		final int slotBegin = slot;
 		while (true) {
-			final int offset = hashStart + slot * 12;
+			final int offset = hashStart + slot * mHashEntrySize;
 			final long candidateKey = mIndexBuffer.getLong(offset);
-			final int candidateOffset = mIndexBuffer.getInt(offset + 8);
+			final long candidateOffset = readSlotOffset(offset);
 			if (candidateOffset == 0) {
 				mSlotOffset = offset;
 				return false;
@@ -495,59 +1270,152 @@ public class BlobCache implements Closeable {
 				}
 				if (slot == slotBegin) {
 					Log.w(TAG, "corrupted index: clear the slot.");
-					mIndexBuffer.putInt(hashStart + slot * 12 + 8, 0);
+					final int slotOffset = hashStart + slot * mHashEntrySize;
+					writeSlot(slotOffset, mIndexBuffer.getLong(slotOffset), 0);
+				}
+			}
+		}
+	}
+
+	// Creates the Bloom filters from the keys in the index. This reads the
+	// whole index once, when the cache is opened.
+	private void buildFilters() {
+		mFilters = new BloomFilter[mRegionCount];
+		for (int region = 0; region < mRegionCount; ++region) {
+			final BloomFilter filter = new BloomFilter(mMaxEntries * FILTER_BITS_PER_ENTRY);
+			final int hashStart = getHashStart(region);
+			for (int i = 0; i < mMaxEntries; ++i) {
+				final int offset = hashStart + i * mHashEntrySize;
+				if (readSlotOffset(offset) != 0) {
+					filter.add(mIndexBuffer.getLong(offset));
 				}
 			}
+			mFilters[region] = filter;
+		}
+	}
+
+	private long readSlotOffset(final int slotOffset) {
+		return mWide ? mIndexBuffer.getLong(slotOffset + 8) : mIndexBuffer.getInt(slotOffset + 8);
+	}
+
+	private void writeSlot(final int slotOffset, final long key, final long offset) {
+		mIndexBuffer.putLong(slotOffset, key);
+		if (mWide) {
+			mIndexBuffer.putLong(slotOffset + 8, offset);
+		} else {
+			mIndexBuffer.putInt(slotOffset + 8, (int) offset);
 		}
 	}
 
-	private void resetCache(final int maxEntries, final int maxBytes) throws IOException {
+	private void resetCache(final int maxEntries, final long maxBytes) throws IOException {
+		setFormat(needsWideFormat(maxBytes), false);
+		mMaxEntries = maxEntries;
+		mMaxBytes = maxBytes;
+		mActiveRegion = 0;
+		mActiveEntries = 0;
+		mActiveBytes = mDataHeaderSize;
+
 		mIndexFile.setLength(0); // truncate to zero the index
-		mIndexFile.setLength(INDEX_HEADER_SIZE + maxEntries * 12 * 2);
+		mIndexFile.setLength(getIndexFileLength(maxEntries));
 		mIndexFile.seek(0);
 		final byte[] buf = mIndexHeader;
-		writeInt(buf, IH_MAGIC, MAGIC_INDEX_FILE);
-		writeInt(buf, IH_MAX_ENTRIES, maxEntries);
-		writeInt(buf, IH_MAX_BYTES, maxBytes);
-		writeInt(buf, IH_ACTIVE_REGION, 0);
-		writeInt(buf, IH_ACTIVE_ENTRIES, 0);
-		writeInt(buf, IH_ACTIVE_BYTES, DATA_HEADER_SIZE);
-		writeInt(buf, IH_VERSION, mVersion);
-		writeInt(buf, IH_CHECKSUM, checkSum(buf, 0, IH_CHECKSUM));
-		mIndexFile.write(buf);
+		fillIndexHeader();
+		mIndexFile.write(buf, 0, mIndexHeaderSize);
 		// This is only needed if setLength does not zero the extended part.
-		// writeZero(mIndexFile, maxEntries * 12 * 2);
+		// writeZero(mIndexFile, maxEntries * mHashEntrySize * mRegionCount);
+
+		mGeneration = 0;
+		for (int i = 0; i < mRegionCount; ++i) {
+			mDataFiles[i].setLength(0);
+			writeDataHeader(i, 0);
+		}
+	}
+
+	// Writes the header of the data file of the given region. The generation
+	// is not kept by the legacy format.
+	private void writeDataHeader(final int region, final int generation) throws IOException {
+		final byte[] header = new byte[mDataHeaderSize];
+		writeInt(header, DH_MAGIC, getDataFileMagic());
+		if (!mLegacy) {
+			writeInt(header, DH_GENERATION, generation);
+		}
+		final ByteBuffer buffer = ByteBuffer.wrap(header);
+		while (buffer.hasRemaining()) {
+			mDataChannels[region].write(buffer, buffer.position());
+		}
+	}
 
-		mDataFile0.setLength(0);
-		mDataFile1.setLength(0);
-		mDataFile0.seek(0);
-		mDataFile1.seek(0);
-		writeInt(buf, 0, MAGIC_DATA_FILE);
-		mDataFile0.write(buf, 0, 4);
-		mDataFile1.write(buf, 0, 4);
+	private static boolean needsWideFormat(final long maxBytes) {
+		return maxBytes > MAX_BYTES_NARROW;
+	}
+
+	// A legacy cache is never wide: the wide format came later.
+	private void setFormat(final boolean wide, final boolean legacy) {
+		mWide = wide;
+		mLegacy = legacy;
+		mIndexHeaderSize = wide ? INDEX_HEADER_SIZE_WIDE : INDEX_HEADER_SIZE;
+		mHashEntrySize = wide ? HASH_ENTRY_SIZE_WIDE : HASH_ENTRY_SIZE;
+		mDataHeaderSize = legacy ? DATA_HEADER_SIZE_LEGACY : DATA_HEADER_SIZE;
+		mBlobHeaderSize = wide ? BLOB_HEADER_SIZE_WIDE : legacy ? BLOB_HEADER_SIZE_LEGACY : BLOB_HEADER_SIZE;
+	}
+
+	private int getIndexFileMagic() {
+		return mWide ? MAGIC_INDEX_FILE_WIDE : mLegacy ? MAGIC_INDEX_FILE_LEGACY : MAGIC_INDEX_FILE;
+	}
+
+	private int getDataFileMagic() {
+		return mWide ? MAGIC_DATA_FILE_WIDE : mLegacy ? MAGIC_DATA_FILE_LEGACY : MAGIC_DATA_FILE;
+	}
+
+	private long getIndexFileLength(final int maxEntries) {
+		return mIndexHeaderSize + (long) maxEntries * mHashEntrySize * mRegionCount;
 	}
 
 	private void setActiveVariables() throws IOException {
-		mActiveDataFile = mActiveRegion == 0 ? mDataFile0 : mDataFile1;
-		mInactiveDataFile = mActiveRegion == 1 ? mDataFile0 : mDataFile1;
-		mActiveDataFile.setLength(mActiveBytes);
+		mActiveDataFile = mDataFiles[mActiveRegion];
 		mActiveDataFile.seek(mActiveBytes);
+		mActiveHashStart = getHashStart(mActiveRegion);
+	}
 
-		mActiveHashStart = INDEX_HEADER_SIZE;
-		mInactiveHashStart = INDEX_HEADER_SIZE;
+	private int getHashStart(final int region) {
+		return mIndexHeaderSize + region * mMaxEntries * mHashEntrySize;
+	}
+
+	// Returns the region holding the entries of the given age: 0 is the active
+	// region, 1 the one written before it, and so on up to mRegionCount - 1,
+	// which is the oldest region and the next one to be reused.
+	private int getRegionByAge(final int age) {
+		return (mActiveRegion - age + mRegionCount) % mRegionCount;
+	}
 
-		if (mActiveRegion == 0) {
-			mInactiveHashStart += mMaxEntries * 12;
+	// Writes the current state into mIndexHeader, in the format of the cache.
+	private void fillIndexHeader() {
+		final byte[] buf = mIndexHeader;
+		writeInt(buf, IH_MAX_ENTRIES, mMaxEntries);
+		if (mWide) {
+			writeInt(buf, IH_MAGIC, MAGIC_INDEX_FILE_WIDE);
+			writeLong(buf, IHW_MAX_BYTES, mMaxBytes);
+			writeInt(buf, IHW_ACTIVE_REGION, mActiveRegion);
+			writeInt(buf, IHW_ACTIVE_ENTRIES, mActiveEntries);
+			writeLong(buf, IHW_ACTIVE_BYTES, mActiveBytes);
+			writeInt(buf, IHW_VERSION, mVersion);
+			writeInt(buf, IHW_CHECKSUM, checkSum(buf, 0, IHW_CHECKSUM));
 		} else {
-			mActiveHashStart += mMaxEntries * 12;
+			writeInt(buf, IH_MAGIC, getIndexFileMagic());
+			writeInt(buf, IH_MAX_BYTES, (int) mMaxBytes);
+			writeInt(buf, IH_ACTIVE_REGION, mActiveRegion);
+			writeInt(buf, IH_ACTIVE_ENTRIES, mActiveEntries);
+			writeInt(buf, IH_ACTIVE_BYTES, (int) mActiveBytes);
+			writeInt(buf, IH_VERSION, mVersion);
+			writeInt(buf, IH_CHECKSUM, checkSum(buf, 0, IH_CHECKSUM));
 		}
 	}
 
-	// Sync mIndexHeader to the index file.
+	// Sync the current state to the index file.
 	private void updateIndexHeader() {
-		writeInt(mIndexHeader, IH_CHECKSUM, checkSum(mIndexHeader, 0, IH_CHECKSUM));
+		fillIndexHeader();
 		mIndexBuffer.position(0);
-		mIndexBuffer.put(mIndexHeader);
+		mIndexBuffer.put(mIndexHeader, 0, mIndexHeaderSize);
 	}
 
 	int checkSum(final byte[] data) {
@@ -556,6 +1424,14 @@ public class BlobCache implements Closeable {
 		return (int) mAdler32.getValue();
 	}
 
+	int checkSum(final byte[][] parts) {
+		mAdler32.reset();
+		for (final byte[] part : parts) {
+			mAdler32.update(part);
+		}
+		return (int) mAdler32.getValue();
+	}
+
 	int checkSum(final byte[] data, final int offset, final int nbytes) {
 		mAdler32.reset();
 		mAdler32.update(data, offset, nbytes);
@@ -567,11 +1443,20 @@ public class BlobCache implements Closeable {
 	// Returns the active count (mActiveEntries). This also verifies that
 	// the active count matches matches what's inside the hash region.
 	int getActiveCount() {
+		mLock.readLock().lock();
+		try {
+			return getActiveCountLocked();
+		} finally {
+			mLock.readLock().unlock();
+		}
+	}
+
+	private int getActiveCountLocked() {
 		int count = 0;
 		for (int i = 0; i < mMaxEntries; i++) {
-			final int offset = mActiveHashStart + i * 12;
+			final int offset = mActiveHashStart + i * mHashEntrySize;
 			final long candidateKey = mIndexBuffer.getLong(offset);
-			final int candidateOffset = mIndexBuffer.getInt(offset + 8);
+			final long candidateOffset = readSlotOffset(offset);
 			if (candidateOffset != 0) {
 				++count;
 			}
@@ -590,6 +1475,12 @@ public class BlobCache implements Closeable {
 		deleteFileSilently(path + ".idx");
 		deleteFileSilently(path + ".0");
 		deleteFileSilently(path + ".1");
+		// Data files of the regions beyond the default two, if any.
+		for (int i = DEFAULT_REGION_COUNT;; ++i) {
+			final File file = new File(path + "." + i);
+			if (!file.exists()) break;
+			deleteFileSilently(file.getPath());
+		}
 	}
 
 	private static void deleteFileSilently(final String path) {
@@ -600,6 +1491,19 @@ public class BlobCache implements Closeable {
 		}
 	}
 
+	// Reads from the channel at the given position until the buffer is full
+	// or the end of file is reached. Returns the number of bytes read.
+	static int readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+		int total = 0;
+		while (buffer.hasRemaining()) {
+			final int n = channel.read(buffer, position);
+			if (n < 0) break;
+			total += n;
+			position += n;
+		}
+		return total;
+	}
+
 	static void closeSilently(final Closeable c) {
 		if (c == null) return;
 		try {
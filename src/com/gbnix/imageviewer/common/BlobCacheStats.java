@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.common;
+
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import android.util.Log;
+
+// Counters and latency histograms of a BlobCache (or of all the shards of a
+// ShardedBlobCache). They are updated by the cache as it is used, and can be
+// read at any time. The dumpToFile() method saves them to a text file.
+public class BlobCacheStats {
+	private static final String TAG = "BlobCacheStats";
+
+	// Hits by age of the region they are found in: 0 is the active region.
+	final AtomicLongArray mHits;
+	final AtomicLong mMisses = new AtomicLong();
+	// Region probes avoided by the Bloom filters.
+	final AtomicLong mFilterSkips = new AtomicLong();
+	final AtomicLong mChecksumFailures = new AtomicLong();
+	final AtomicLong mInserts = new AtomicLong();
+	// Blob headers included.
+	final AtomicLong mBytesWritten = new AtomicLong();
+	final AtomicLong mFlips = new AtomicLong();
+	final AtomicLong mPromotions = new AtomicLong();
+	final AtomicLong mPromotedBytes = new AtomicLong();
+	final Histogram mLookupTime = new Histogram();
+	// How long the write lock is held by inserts, promotions and flips.
+	final Histogram mWriteLockTime = new Histogram();
+
+	public BlobCacheStats(final int regionCount) {
+		mHits = new AtomicLongArray(regionCount);
+	}
+
+	public int getRegionCount() {
+		return mHits.length();
+	}
+
+	public long getHits(final int age) {
+		return mHits.get(age);
+	}
+
+	public long getHits() {
+		long hits = 0;
+		for (int i = 0; i < mHits.length(); ++i) {
+			hits += mHits.get(i);
+		}
+		return hits;
+	}
+
+	public long getMisses() {
+		return mMisses.get();
+	}
+
+	public long getFilterSkips() {
+		return mFilterSkips.get();
+	}
+
+	public long getChecksumFailures() {
+		return mChecksumFailures.get();
+	}
+
+	public long getInserts() {
+		return mInserts.get();
+	}
+
+	public long getBytesWritten() {
+		return mBytesWritten.get();
+	}
+
+	public long getFlips() {
+		return mFlips.get();
+	}
+
+	public long getPromotions() {
+		return mPromotions.get();
+	}
+
+	public long getPromotedBytes() {
+		return mPromotedBytes.get();
+	}
+
+	public Histogram getLookupTime() {
+		return mLookupTime;
+	}
+
+	public Histogram getWriteLockTime() {
+		return mWriteLockTime;
+	}
+
+	public void reset() {
+		for (int i = 0; i < mHits.length(); ++i) {
+			mHits.set(i, 0);
+		}
+		mMisses.set(0);
+		mFilterSkips.set(0);
+		mChecksumFailures.set(0);
+		mInserts.set(0);
+		mBytesWritten.set(0);
+		mFlips.set(0);
+		mPromotions.set(0);
+		mPromotedBytes.set(0);
+		mLookupTime.reset();
+		mWriteLockTime.reset();
+	}
+
+	public void dumpToFile(final String filename) {
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new FileOutputStream(filename));
+			out.writeBytes(toString());
+		} catch (final IOException ex) {
+			Log.w(TAG, "Failed to dump to file", ex);
+		} finally {
+			Utils.closeSilently(out);
+		}
+	}
+
+	// Returns the statistics as text, one "name: value" line each.
+	@Override
+	public String toString() {
+		final StringBuilder sb = new StringBuilder();
+		final long hits = getHits();
+		final long lookups = hits + getMisses();
+		sb.append("lookups: ").append(lookups).append('\n');
+		sb.append("hit rate: ").append(lookups == 0 ? 0 : hits * 100 / lookups).append("%\n");
+		for (int i = 0; i < mHits.length(); ++i) {
+			sb.append("hits at age ").append(i).append(": ").append(mHits.get(i)).append('\n');
+		}
+		sb.append("misses: ").append(getMisses()).append('\n');
+		sb.append("filter skips: ").append(getFilterSkips()).append('\n');
+		sb.append("checksum failures: ").append(getChecksumFailures()).append('\n');
+		sb.append("inserts: ").append(getInserts()).append('\n');
+		sb.append("bytes written: ").append(getBytesWritten()).append('\n');
+		sb.append("flips: ").append(getFlips()).append('\n');
+		sb.append("promotions: ").append(getPromotions()).append('\n');
+		sb.append("promoted bytes: ").append(getPromotedBytes()).append('\n');
+		sb.append("lookup time: ").append(mLookupTime).append('\n');
+		sb.append("write lock time: ").append(mWriteLockTime).append('\n');
+		return sb.toString();
+	}
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.common;
+
+import java.util.Arrays;
+
+// A Bloom filter of 64-bit keys. mightContain() never returns false for a key
+// which has been added since the last clear(), and rarely returns true for
+// other keys.
+//
+// The keys are expected to be hashes already (like the ones made by
+// Utils.crc64Long), so they are only mixed a little before being split into
+// the two hashes used for double hashing.
+//
+// This class is not thread-safe.
+class BloomFilter {
+	private static final int HASH_COUNT = 4;
+
+	private final long[] mBits;
+	private final int mBitCount;
+
+	// Creates a filter of at least bitCount bits. With 16 bits per key the
+	// false positive rate is about 0.25%.
+	BloomFilter(final int bitCount) {
+		mBits = new long[Math.max(1, (bitCount + 63) / 64)];
+		mBitCount = mBits.length * 64;
+	}
+
+	void add(final long key) {
+		final long hash = key * 0x9E3779B97F4A7C15L;
+		final int h1 = (int) (hash >>> 32);
+		final int h2 = (int) hash | 1;
+		for (int i = 0; i < HASH_COUNT; ++i) {
+			final int bit = ((h1 + i * h2) & 0x7FFFFFFF) % mBitCount;
+			mBits[bit >>> 6] |= 1L << bit;
+		}
+	}
+
+	boolean mightContain(final long key) {
+		final long hash = key * 0x9E3779B97F4A7C15L;
+		final int h1 = (int) (hash >>> 32);
+		final int h2 = (int) hash | 1;
+		for (int i = 0; i < HASH_COUNT; ++i) {
+			final int bit = ((h1 + i * h2) & 0x7FFFFFFF) % mBitCount;
+			if ((mBits[bit >>> 6] & 1L << bit) == 0) return false;
+		}
+		return true;
+	}
+
+	void clear() {
+		Arrays.fill(mBits, 0);
+	}
+}
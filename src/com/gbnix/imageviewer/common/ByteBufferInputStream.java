@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.common;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * An {@link InputStream} which reads the remaining bytes of a
+ * {@link ByteBuffer}. The position of the given buffer is not changed.
+ */
+public class ByteBufferInputStream extends InputStream {
+	private final ByteBuffer mBuffer;
+	private int mMark;
+
+	public ByteBufferInputStream(final ByteBuffer buffer) {
+		mBuffer = buffer.duplicate();
+		mMark = mBuffer.position();
+	}
+
+	@Override
+	public int available() {
+		return mBuffer.remaining();
+	}
+
+	@Override
+	public synchronized void mark(final int readLimit) {
+		mMark = mBuffer.position();
+	}
+
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+
+	@Override
+	public int read() {
+		return mBuffer.hasRemaining() ? mBuffer.get() & 0xff : -1;
+	}
+
+	@Override
+	public int read(final byte[] buffer, final int offset, final int length) {
+		if (length == 0) return 0;
+		if (!mBuffer.hasRemaining()) return -1;
+		final int n = Math.min(length, mBuffer.remaining());
+		mBuffer.get(buffer, offset, n);
+		return n;
+	}
+
+	@Override
+	public synchronized void reset() {
+		mBuffer.position(mMark);
+	}
+
+	@Override
+	public long skip(final long n) {
+		if (n <= 0) return 0;
+		final int skipped = (int) Math.min(n, mBuffer.remaining());
+		mBuffer.position(mBuffer.position() + skipped);
+		return skipped;
+	}
+}
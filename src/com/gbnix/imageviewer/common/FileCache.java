@@ -20,7 +20,6 @@ import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
@@ -50,10 +49,13 @@ public class FileCache implements Closeable {
 
 	private final File mRootDir;
 	private final long mCapacity;
-	private boolean mInitialized = false;
+	// Read without the lock by lookup(): mAccessTracker is set before
+	// mInitialized becomes true.
+	private volatile boolean mInitialized = false;
 	private long mTotalBytes;
 
 	private final DatabaseHelper mDbHelper;
+	private volatile LastAccessTracker mAccessTracker;
 
 	public FileCache(final Context context, final File rootDir, final String dbName, final long capacity) {
 		mRootDir = Utils.checkNotNull(rootDir);
@@ -63,6 +65,11 @@ public class FileCache implements Closeable {
 
 	@Override
 	public void close() {
+		synchronized (this) {
+			if (mAccessTracker != null) {
+				mAccessTracker.close();
+			}
+		}
 		mDbHelper.close();
 	}
 
@@ -80,9 +87,7 @@ public class FileCache implements Closeable {
 		}
 
 		if (entry != null) {
-			synchronized (this) {
-				updateLastAccess(entry.id);
-			}
+			updateLastAccess(entry.id);
 			return entry;
 		}
 
@@ -140,6 +145,8 @@ public class FileCache implements Closeable {
 	}
 
 	private void freeSomeSpaceIfNeed(int maxDeleteFileCount) {
+		// The order of the query below needs the latest access times.
+		mAccessTracker.flush();
 		final Cursor cursor = mDbHelper.getReadableDatabase().query(TABLE_NAME, FREESPACE_PROJECTION, null, null, null,
 				null, FREESPACE_ORDER_BY);
 		try {
@@ -176,6 +183,10 @@ public class FileCache implements Closeable {
 			mRootDir.mkdirs();
 			if (!mRootDir.isDirectory()) throw new RuntimeException("cannot create: " + mRootDir.getAbsolutePath());
 		}
+		if (mAccessTracker == null) {
+			mAccessTracker = new LastAccessTracker(mDbHelper.getWritableDatabase(), TABLE_NAME,
+					FileEntry.Columns.ID, FileEntry.Columns.LAST_ACCESS);
+		}
 
 		final Cursor cursor = mDbHelper.getReadableDatabase().query(TABLE_NAME, PROJECTION_SIZE_SUM, null, null, null,
 				null, null);
@@ -213,9 +224,7 @@ public class FileCache implements Closeable {
 	}
 
 	private void updateLastAccess(final long id) {
-		final ContentValues values = new ContentValues();
-		values.put(FileEntry.Columns.LAST_ACCESS, System.currentTimeMillis());
-		mDbHelper.getWritableDatabase().update(TABLE_NAME, values, ID_WHERE, new String[] { String.valueOf(id) });
+		mAccessTracker.record(id);
 	}
 
 	public static void deleteFiles(final Context context, final File rootDir, final String dbName) {
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.common;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// A histogram of durations with power-of-two buckets: bucket 0 counts the
+// durations below 1us, and bucket i (i > 0) the ones in [2^(i-1), 2^i) us.
+// It is safe for concurrent use and cheap enough to be updated on every
+// operation.
+public class Histogram {
+	public static final int BUCKET_COUNT = 32;
+
+	private final AtomicLongArray mBuckets = new AtomicLongArray(BUCKET_COUNT);
+	private final AtomicLong mTotalNanos = new AtomicLong();
+
+	public void addNanos(final long nanos) {
+		final long micros = nanos / 1000;
+		final int bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+		mBuckets.incrementAndGet(bucket);
+		mTotalNanos.addAndGet(nanos);
+	}
+
+	public long getCount() {
+		long count = 0;
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			count += mBuckets.get(i);
+		}
+		return count;
+	}
+
+	public long getCount(final int bucket) {
+		return mBuckets.get(bucket);
+	}
+
+	public long getTotalNanos() {
+		return mTotalNanos.get();
+	}
+
+	// Returns the upper bound in microseconds of the bucket which holds the
+	// given percentile, or 0 if the histogram is empty.
+	public long getPercentileMicros(final int percent) {
+		final long count = getCount();
+		if (count == 0) return 0;
+		final long target = (count * percent + 99) / 100;
+		long seen = 0;
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			seen += mBuckets.get(i);
+			if (seen >= target) return 1L << i;
+		}
+		return 1L << (BUCKET_COUNT - 1);
+	}
+
+	public void reset() {
+		for (int i = 0; i < BUCKET_COUNT; ++i) {
+			mBuckets.set(i, 0);
+		}
+		mTotalNanos.set(0);
+	}
+
+	@Override
+	public String toString() {
+		final long count = getCount();
+		final StringBuilder sb = new StringBuilder();
+		sb.append("count=").append(count);
+		if (count == 0) return sb.toString();
+		sb.append(" avg=").append(mTotalNanos.get() / count / 1000).append("us");
+		sb.append(" p50<").append(getPercentileMicros(50)).append("us");
+		sb.append(" p90<").append(getPercentileMicros(90)).append("us");
+		sb.append(" p99<").append(getPercentileMicros(99)).append("us");
+		sb.append(" buckets=");
+		int last = BUCKET_COUNT - 1;
+		while (last > 0 && mBuckets.get(last) == 0) {
+			--last;
+		}
+		for (int i = 0; i <= last; ++i) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(mBuckets.get(i));
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.common;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Process;
+import android.util.Log;
+
+// Keeps the last access times of the rows of a cache table in memory, and
+// writes them to the database in a single transaction every few seconds,
+// instead of running an UPDATE on every cache hit.
+//
+// The caches evict their rows in the order of these times, so they call
+// flush() before they look for rows to evict. The times recorded since the
+// last flush are lost if the process dies, which only makes the entries
+// accessed in the last FLUSH_INTERVAL look a little older. The owner of the
+// tracker calls close() before closing the database.
+public class LastAccessTracker {
+	private static final String TAG = "LastAccessTracker";
+	private static final long FLUSH_INTERVAL = 5000; // ms
+
+	private final SQLiteDatabase mDatabase;
+	private final String mUpdateSql;
+
+	// Guarded by itself: the last access time of each row id.
+	private final HashMap<Long, Long> mPending = new HashMap<Long, Long>();
+	private Thread mWriter;
+	private boolean mClosed;
+
+	public LastAccessTracker(final SQLiteDatabase database, final String table, final String idColumn,
+			final String lastAccessColumn) {
+		mDatabase = Utils.checkNotNull(database);
+		mUpdateSql = "UPDATE " + table + " SET " + lastAccessColumn + " = ? WHERE " + idColumn + " = ?";
+	}
+
+	// Records an access to the row of the given id now.
+	public void record(final long id) {
+		final long now = System.currentTimeMillis();
+		synchronized (mPending) {
+			if (mClosed) return;
+			if (mPending.isEmpty()) {
+				if (mWriter == null) {
+					mWriter = new Thread(new Writer(), "last-access-writer");
+					mWriter.setDaemon(true);
+					mWriter.start();
+				}
+				mPending.notifyAll();
+			}
+			mPending.put(id, now);
+		}
+	}
+
+	// Writes the recorded times and stops the writer thread. The accesses
+	// recorded after this are dropped.
+	public void close() {
+		final Thread writer;
+		synchronized (mPending) {
+			mClosed = true;
+			writer = mWriter;
+			mWriter = null;
+			mPending.notifyAll();
+		}
+		if (writer != null) {
+			writer.interrupt();
+		}
+		flush();
+	}
+
+	// Writes the recorded times to the database.
+	public synchronized void flush() {
+		final long[] ids;
+		final long[] times;
+		synchronized (mPending) {
+			if (mPending.isEmpty()) return;
+			ids = new long[mPending.size()];
+			times = new long[ids.length];
+			int i = 0;
+			for (final Map.Entry<Long, Long> entry : mPending.entrySet()) {
+				ids[i] = entry.getKey();
+				times[i++] = entry.getValue();
+			}
+			mPending.clear();
+		}
+		try {
+			mDatabase.beginTransaction();
+			try {
+				final SQLiteStatement statement = mDatabase.compileStatement(mUpdateSql);
+				try {
+					for (int i = 0; i < ids.length; i++) {
+						statement.bindLong(1, times[i]);
+						statement.bindLong(2, ids[i]);
+						statement.executeUpdateDelete();
+					}
+				} finally {
+					statement.close();
+				}
+				mDatabase.setTransactionSuccessful();
+			} finally {
+				mDatabase.endTransaction();
+			}
+		} catch (final Throwable t) {
+			Log.w(TAG, "cannot write last access times", t);
+		}
+	}
+
+	// Flushes the recorded times FLUSH_INTERVAL after the first access
+	// recorded since the last flush.
+	private class Writer implements Runnable {
+		@Override
+		public void run() {
+			Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+			while (true) {
+				synchronized (mPending) {
+					while (mPending.isEmpty() && !mClosed) {
+						Utils.waitWithoutInterrupt(mPending);
+					}
+					// close() flushes what is left.
+					if (mClosed) return;
+				}
+				try {
+					Thread.sleep(FLUSH_INTERVAL);
+				} catch (final InterruptedException e) {
+					// Interrupted by close().
+				}
+				flush();
+			}
+		}
+	}
+}
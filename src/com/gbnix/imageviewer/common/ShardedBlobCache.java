@@ -0,0 +1,223 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+// This is a BlobCache split into S independent shards. Each key belongs to one
+// shard, chosen from its high bits, and each shard is a complete BlobCache
+// with its own files, lock and ring of regions. So writers and readers of
+// different shards never wait for each other, and a flip only evicts about
+// 1 / (K * S) of the cached data.
+//
+// Shard 0 uses the files of a plain BlobCache at the same path, and shard i
+// (i > 0) uses path + "-" + i as its path. The maxEntries and maxBytes
+// parameters are per region of each shard.
+//
+// The keys are expected to be suitably distributed hashes (for example the
+// ones made by Utils.crc64Long). The low bits choose the slot in the index of
+// a shard, so the high bits are used to choose the shard.
+//
+// public ShardedBlobCache(String path, int shardCount, int maxEntries, long maxBytes, boolean reset, int version, int regionCount) throws IOException;
+// public void insert(long key, byte[] data) throws IOException;
+// public void insert(long key, byte[]... parts) throws IOException;
+// public void insert(long[] keys, byte[][] data, int count) throws IOException;
+// public void insert(long[] keys, byte[][][] parts, int count) throws IOException;
+// public byte[] lookup(long key) throws IOException;
+// public boolean lookup(LookupRequest req) throws IOException;
+// public ByteBuffer lookupMapped(long key) throws IOException;
+// public int getGeneration(long key);
+// public int getMaxBlobLength();
+// public boolean hasPendingPromotions();
+// public int promotePending(int maxBytes) throws IOException;
+// public void close();
+// public void syncIndex();
+// public void syncAll();
+// public BlobCacheStats getStats();
+// public static void deleteFiles(String path);
+//
+package com.gbnix.imageviewer.common;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.gbnix.imageviewer.common.BlobCache.LookupRequest;
+
+public class ShardedBlobCache implements Closeable {
+	private final BlobCache[] mShards;
+	private final BlobCacheStats mStats;
+
+	// The shard promotePending() starts with, so that every shard gets its
+	// share of the promotion budget.
+	private final AtomicInteger mNextPromotionShard = new AtomicInteger();
+
+	public ShardedBlobCache(final String path, final int shardCount, final int maxEntries, final long maxBytes,
+			final boolean reset, final int version, final int regionCount) throws IOException {
+		if (shardCount < 1) throw new IllegalArgumentException("invalid shard count: " + shardCount);
+		mShards = new BlobCache[shardCount];
+		mStats = new BlobCacheStats(regionCount);
+		try {
+			for (int i = 0; i < shardCount; ++i) {
+				mShards[i] = new BlobCache(getShardPath(path, i), maxEntries, maxBytes, reset, version, regionCount,
+						mStats);
+			}
+		} catch (final IOException e) {
+			close();
+			throw e;
+		}
+	}
+
+	// Close the cache. All resources are released. No other method should be
+	// called after this is called.
+	@Override
+	public void close() {
+		for (final BlobCache shard : mShards) {
+			if (shard != null) {
+				shard.close();
+			}
+		}
+	}
+
+	public void insert(final long key, final byte[] data) throws IOException {
+		getShard(key).insert(key, data);
+	}
+
+	public void insert(final long key, final byte[]... parts) throws IOException {
+		getShard(key).insert(key, parts);
+	}
+
+	// Inserts the first count (key, data) pairs into the cache, with one
+	// batched insert per shard.
+	public void insert(final long[] keys, final byte[][] data, final int count) throws IOException {
+		final byte[][][] parts = new byte[count][][];
+		for (int i = 0; i < count; ++i) {
+			parts[i] = new byte[][] { data[i] };
+		}
+		insert(keys, parts, count);
+	}
+
+	public void insert(final long[] keys, final byte[][][] data, final int count) throws IOException {
+		final int shardCount = mShards.length;
+		if (shardCount == 1) {
+			mShards[0].insert(keys, data, count);
+			return;
+		}
+		final long[] shardKeys = new long[count];
+		final byte[][][] shardData = new byte[count][][];
+		for (int shard = 0; shard < shardCount; ++shard) {
+			int n = 0;
+			for (int i = 0; i < count; ++i) {
+				if (getShardIndex(keys[i]) != shard) {
+					continue;
+				}
+				shardKeys[n] = keys[i];
+				shardData[n] = data[i];
+				n++;
+			}
+			if (n > 0) {
+				mShards[shard].insert(shardKeys, shardData, n);
+			}
+		}
+	}
+
+	public byte[] lookup(final long key) throws IOException {
+		return getShard(key).lookup(key);
+	}
+
+	public boolean lookup(final LookupRequest req) throws IOException {
+		return getShard(req.key).lookup(req);
+	}
+
+	public ByteBuffer lookupMapped(final long key) throws IOException {
+		return getShard(key).lookupMapped(key);
+	}
+
+	// Returns the generation of the shard of the given key, see
+	// BlobCache.getGeneration().
+	public int getGeneration(final long key) {
+		return getShard(key).getGeneration();
+	}
+
+	// The shards are all created with the same limits, but an existing shard
+	// keeps the limits it was created with.
+	public int getMaxBlobLength() {
+		int length = Integer.MAX_VALUE;
+		for (final BlobCache shard : mShards) {
+			length = Math.min(length, shard.getMaxBlobLength());
+		}
+		return length;
+	}
+
+	public boolean hasPendingPromotions() {
+		for (final BlobCache shard : mShards) {
+			if (shard.hasPendingPromotions()) return true;
+		}
+		return false;
+	}
+
+	// Same as BlobCache.promotePending(), maxBytes is for all the shards
+	// together.
+	public int promotePending(final int maxBytes) throws IOException {
+		final int shardCount = mShards.length;
+		final int first = (mNextPromotionShard.getAndIncrement() & Integer.MAX_VALUE) % shardCount;
+		int written = 0;
+		for (int i = 0; i < shardCount && written < maxBytes; ++i) {
+			final BlobCache shard = mShards[(first + i) % shardCount];
+			if (shard.hasPendingPromotions()) {
+				written += shard.promotePending(maxBytes - written);
+			}
+		}
+		return written;
+	}
+
+	// Returns the statistics of all the shards together.
+	public BlobCacheStats getStats() {
+		return mStats;
+	}
+
+	public void syncIndex() {
+		for (final BlobCache shard : mShards) {
+			shard.syncIndex();
+		}
+	}
+
+	public void syncAll() {
+		for (final BlobCache shard : mShards) {
+			shard.syncAll();
+		}
+	}
+
+	private BlobCache getShard(final long key) {
+		return mShards[getShardIndex(key)];
+	}
+
+	private int getShardIndex(final long key) {
+		return (int) ((key >>> 40) % mShards.length);
+	}
+
+	// Delete the files associated with the given path previously created
+	// by the ShardedBlobCache constructor.
+	public static void deleteFiles(final String path) {
+		BlobCache.deleteFiles(path);
+		for (int i = 1; new File(getShardPath(path, i) + ".idx").exists(); ++i) {
+			BlobCache.deleteFiles(getShardPath(path, i));
+		}
+	}
+
+	private static String getShardPath(final String path, final int shard) {
+		return shard == 0 ? path : path + "-" + shard;
+	}
+}
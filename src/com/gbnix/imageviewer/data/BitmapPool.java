@@ -17,12 +17,14 @@
 package com.gbnix.imageviewer.data;
 
 import java.io.FileDescriptor;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.BitmapFactory.Options;
 
+import com.gbnix.imageviewer.common.ByteBufferInputStream;
 import com.gbnix.imageviewer.common.Utils;
 import com.gbnix.imageviewer.ui.Log;
 import com.gbnix.imageviewer.util.ThreadPool.JobContext;
@@ -114,6 +116,35 @@ public class BitmapPool {
 		}
 	}
 
+	// This is the same as the method above except the source data comes
+	// from the remaining bytes of a ByteBuffer, which is not copied to the
+	// heap. The position of the buffer is not changed.
+	public Bitmap decode(final JobContext jc, final ByteBuffer data, Options options) {
+		if (options == null) {
+			options = new BitmapFactory.Options();
+		}
+		if (options.inSampleSize < 1) {
+			options.inSampleSize = 1;
+		}
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		options.inBitmap = options.inSampleSize == 1 ? findCachedBitmap(jc, data, options) : null;
+		try {
+			final Bitmap bitmap = DecodeUtils.decode(jc, new ByteBufferInputStream(data), options);
+			if (options.inBitmap != null && options.inBitmap != bitmap) {
+				recycle(options.inBitmap);
+				options.inBitmap = null;
+			}
+			return bitmap;
+		} catch (final IllegalArgumentException e) {
+			if (options.inBitmap == null) throw e;
+
+			Log.w(TAG, "decode fail with a given bitmap, try decode to a new bitmap");
+			recycle(options.inBitmap);
+			options.inBitmap = null;
+			return DecodeUtils.decode(jc, new ByteBufferInputStream(data), options);
+		}
+	}
+
 	// Get a Bitmap from the pool.
 	public synchronized Bitmap getBitmap() {
 		Utils.assertTrue(mOneSize);
@@ -155,6 +186,12 @@ public class BitmapPool {
 		return getBitmap(options.outWidth, options.outHeight);
 	}
 
+	private Bitmap findCachedBitmap(final JobContext jc, final ByteBuffer data, final Options options) {
+		if (mOneSize) return getBitmap();
+		DecodeUtils.decodeBounds(jc, new ByteBufferInputStream(data), options);
+		return getBitmap(options.outWidth, options.outHeight);
+	}
+
 	private Bitmap findCachedBitmap(final JobContext jc, final FileDescriptor fileDescriptor, final Options options) {
 		if (mOneSize) return getBitmap();
 		DecodeUtils.decodeBounds(jc, fileDescriptor, options);
@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.data;
+
+import java.util.ArrayList;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.os.BatteryManager;
+
+import com.gbnix.imageviewer.app.GalleryApp;
+import com.gbnix.imageviewer.common.Utils;
+import com.gbnix.imageviewer.util.Future;
+import com.gbnix.imageviewer.util.ThreadPool;
+import com.gbnix.imageviewer.util.ThreadPool.CancelListener;
+import com.gbnix.imageviewer.util.ThreadPool.Job;
+import com.gbnix.imageviewer.util.ThreadPool.JobContext;
+
+// Fills the image cache with the micro-thumbnails and thumbnails of all the
+// items of a MediaSet, so that jumping anywhere in the set is a cache hit.
+//
+// The items are warmed one at a time, starting from the one the reader is at
+// and wrapping around at the end of the set. Before each item the warmer
+// waits until no other job holds the CPU or the network resources of the
+// ThreadPool, and it pauses while the battery is low and the device is not
+// plugged in. The progress is saved, so a warmer started again for the same
+// set (even after a restart) continues where the last one stopped.
+public class CacheWarmer {
+	private static final String TAG = "CacheWarmer";
+
+	private static final String PREFS_NAME = "cache_warmer";
+	private static final String KEY_START = "start-";
+	private static final String KEY_NEXT = "next-";
+	private static final int DONE = -1;
+
+	private static final int[] TYPES = { MediaItem.TYPE_MICROTHUMBNAIL, MediaItem.TYPE_THUMBNAIL };
+
+	private static final int MIN_BATTERY_PERCENT = 30;
+	private static final long YIELD_DELAY = 500; // ms
+	private static final long BATTERY_CHECK_INTERVAL = 60 * 1000; // ms
+
+	private final GalleryApp mApplication;
+	private Future<Void> mTask;
+
+	public CacheWarmer(final GalleryApp application) {
+		mApplication = Utils.checkNotNull(application);
+	}
+
+	// Starts warming the given set, from the item at startIndex if the set
+	// has not been warmed before. Any previous warming is stopped.
+	public synchronized void start(final MediaSet set, final int startIndex) {
+		stop();
+		mTask = mApplication.getThreadPool().submit(new WarmingJob(set, startIndex));
+	}
+
+	public synchronized void stop() {
+		if (mTask != null) {
+			mTask.cancel();
+			mTask = null;
+		}
+	}
+
+	private class WarmingJob implements Job<Void> {
+		private final MediaSet mSet;
+		private final int mStartIndex;
+		private final Object mSleepLock = new Object();
+
+		public WarmingJob(final MediaSet set, final int startIndex) {
+			mSet = set;
+			mStartIndex = startIndex;
+		}
+
+		@Override
+		public Void run(final JobContext jc) {
+			// The resources are only taken while an item is being warmed.
+			jc.setMode(ThreadPool.MODE_NONE);
+
+			final int total = mSet.getMediaItemCount();
+			if (total == 0) return null;
+			final SharedPreferences prefs = mApplication.getAndroidContext().getSharedPreferences(PREFS_NAME,
+					Context.MODE_PRIVATE);
+			final String suffix = Long.toHexString(Utils.crc64Long(mSet.getPath().toString()));
+			int start = prefs.getInt(KEY_START + suffix, DONE);
+			int index = prefs.getInt(KEY_NEXT + suffix, DONE);
+			if (start < 0 || start >= total || index >= total) {
+				start = Utils.clamp(mStartIndex, 0, total - 1);
+				index = start;
+			} else if (index == DONE) return null;
+
+			do {
+				if (!waitForResources(jc)) return null;
+				if (!jc.setMode(ThreadPool.MODE_CPU)) return null;
+				warm(jc, index);
+				jc.setMode(ThreadPool.MODE_NONE);
+				// A cancelled item may be incomplete: do it again next time.
+				if (jc.isCancelled()) return null;
+				index = (index + 1) % total;
+				prefs.edit().putInt(KEY_START + suffix, start).putInt(KEY_NEXT + suffix, index == start ? DONE : index)
+						.apply();
+			} while (index != start);
+			Log.d(TAG, "warmed " + total + " items of " + mSet.getPath());
+			return null;
+		}
+
+		private void warm(final JobContext jc, final int index) {
+			final ArrayList<MediaItem> items = mSet.getMediaItem(index, 1);
+			if (items.isEmpty() || items.get(0) == null) return;
+			final MediaItem item = items.get(0);
+			for (final int type : TYPES) {
+				if (jc.isCancelled()) return;
+				if (item.isImageCached(type)) {
+					continue;
+				}
+				// The bitmap may be shared, so it is left to the GC.
+				item.requestImage(type).run(jc);
+			}
+		}
+
+		// Waits until the foreground jobs leave the resources alone and the
+		// battery allows warming. Returns false if the job is cancelled.
+		private boolean waitForResources(final JobContext jc) {
+			jc.setCancelListener(new CancelListener() {
+				@Override
+				public void onCancel() {
+					synchronized (mSleepLock) {
+						mSleepLock.notifyAll();
+					}
+				}
+			});
+			try {
+				while (!jc.isCancelled()) {
+					if (!isBatteryOk()) {
+						sleep(jc, BATTERY_CHECK_INTERVAL);
+					} else if (!mApplication.getThreadPool().isIdle(ThreadPool.MODE_CPU)
+							|| !mApplication.getThreadPool().isIdle(ThreadPool.MODE_NETWORK)) {
+						sleep(jc, YIELD_DELAY);
+					} else
+						return true;
+				}
+				return false;
+			} finally {
+				jc.setCancelListener(null);
+			}
+		}
+
+		private void sleep(final JobContext jc, final long delay) {
+			synchronized (mSleepLock) {
+				if (jc.isCancelled()) return;
+				try {
+					mSleepLock.wait(delay);
+				} catch (final InterruptedException e) {
+					// ignore.
+				}
+			}
+		}
+
+		private boolean isBatteryOk() {
+			// ACTION_BATTERY_CHANGED is sticky, so this just reads the last
+			// state without registering anything.
+			final Intent intent = mApplication.getAndroidContext().registerReceiver(null,
+					new IntentFilter(Intent.ACTION_BATTERY_CHANGED));
+			if (intent == null) return true;
+			if (intent.getIntExtra(BatteryManager.EXTRA_PLUGGED, 0) != 0) return true;
+			final int level = intent.getIntExtra(BatteryManager.EXTRA_LEVEL, -1);
+			final int scale = intent.getIntExtra(BatteryManager.EXTRA_SCALE, -1);
+			return level < 0 || scale <= 0 || level * 100 / scale >= MIN_BATTERY_PERCENT;
+		}
+	}
+}
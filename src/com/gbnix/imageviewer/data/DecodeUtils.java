@@ -102,6 +102,14 @@ public class DecodeUtils {
 		return ensureGLCompatibleBitmap(BitmapFactory.decodeFileDescriptor(fd, null, options));
 	}
 
+	public static Bitmap decode(final JobContext jc, final InputStream is, Options options) {
+		if (options == null) {
+			options = new Options();
+		}
+		jc.setCancelListener(new DecodeCanceller(options));
+		return ensureGLCompatibleBitmap(BitmapFactory.decodeStream(is, null, options));
+	}
+
 	public static void decodeBounds(final JobContext jc, final byte[] bytes, final int offset, final int length,
 			final Options options) {
 		Utils.assertTrue(options != null);
@@ -119,6 +127,14 @@ public class DecodeUtils {
 		options.inJustDecodeBounds = false;
 	}
 
+	public static void decodeBounds(final JobContext jc, final InputStream is, final Options options) {
+		Utils.assertTrue(options != null);
+		options.inJustDecodeBounds = true;
+		jc.setCancelListener(new DecodeCanceller(options));
+		BitmapFactory.decodeStream(is, null, options);
+		options.inJustDecodeBounds = false;
+	}
+
 	/**
 	 * Decodes the bitmap from the given byte array if the image size is larger
 	 * than the given requirement.
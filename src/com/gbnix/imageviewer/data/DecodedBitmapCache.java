@@ -0,0 +1,176 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.data;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+
+// A memory cache of decoded thumbnails in front of the ImageCacheService. The
+// entries are keyed by path, type and data version, and the least recently
+// used ones are evicted when the total size of the bitmaps exceeds the budget.
+//
+// The cached bitmaps are handed out as they are, without copying, so they are
+// shared by every caller asking for them: the callers must not modify or
+// recycle them, nor put them back into a BitmapPool.
+//
+// The screennails are not cached: they are large, decoded once per photo
+// shown, and each of them would push several thumbnails out.
+public class DecodedBitmapCache {
+	private static final String TAG = "DecodedBitmapCache";
+
+	private final LinkedHashMap<Key, Bitmap> mMap = new LinkedHashMap<Key, Bitmap>(16, 0.75f, true);
+	private final long mMaxBytes;
+	private long mBytes;
+
+	private long mHits;
+	private long mMisses;
+	private long mEvictions;
+
+	public DecodedBitmapCache(final long maxBytes) {
+		mMaxBytes = maxBytes;
+	}
+
+	// Returns the cached bitmap, or null if there is none.
+	public Bitmap get(final Path path, final int type, final long version) {
+		if (type == MediaItem.TYPE_SCREENNAIL) return null;
+		synchronized (this) {
+			final Key key = new Key(path, type, version);
+			final Bitmap cached = mMap.get(key);
+			if (cached != null && cached.isRecycled()) {
+				// Someone recycled the shared bitmap; it can't be used anymore.
+				Log.w(TAG, "cached bitmap recycled: " + path);
+				remove(key);
+			}
+			if (cached == null || cached.isRecycled()) {
+				mMisses++;
+				return null;
+			}
+			mHits++;
+			return cached;
+		}
+	}
+
+	// Puts the given bitmap into the cache. From now on it is shared, so it
+	// must not be modified or recycled.
+	public void put(final Path path, final int type, final long version, final Bitmap bitmap) {
+		if (type == MediaItem.TYPE_SCREENNAIL) return;
+		if (bitmap == null || bitmap.isRecycled()) return;
+		final int size = bitmap.getByteCount();
+		if (size > mMaxBytes / 4) return;
+		synchronized (this) {
+			final Bitmap old = mMap.put(new Key(path, type, version), bitmap);
+			if (old != null) {
+				mBytes -= old.getByteCount();
+			}
+			mBytes += size;
+			trimToSize(mMaxBytes);
+		}
+	}
+
+	public synchronized void clear() {
+		mEvictions += mMap.size();
+		mMap.clear();
+		mBytes = 0;
+	}
+
+	// Releases memory according to the level given to
+	// ComponentCallbacks2.onTrimMemory().
+	public void trimMemory(final int level) {
+		if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+				|| level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL) {
+			clear();
+		} else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW) {
+			synchronized (this) {
+				trimToSize(mMaxBytes / 2);
+			}
+		}
+	}
+
+	public synchronized long getHitCount() {
+		return mHits;
+	}
+
+	public synchronized long getMissCount() {
+		return mMisses;
+	}
+
+	public synchronized long getEvictionCount() {
+		return mEvictions;
+	}
+
+	public synchronized long getSize() {
+		return mBytes;
+	}
+
+	public long getMaxSize() {
+		return mMaxBytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		final long lookups = mHits + mMisses;
+		return "decoded bitmaps: " + mMap.size() + " (" + mBytes + "/" + mMaxBytes + " bytes), hits: " + mHits
+				+ ", misses: " + mMisses + ", hit rate: " + (lookups == 0 ? 0 : mHits * 100 / lookups)
+				+ "%, evictions: " + mEvictions;
+	}
+
+	private void remove(final Key key) {
+		final Bitmap old = mMap.remove(key);
+		if (old != null) {
+			mBytes -= old.getByteCount();
+		}
+	}
+
+	private void trimToSize(final long maxBytes) {
+		final Iterator<Map.Entry<Key, Bitmap>> it = mMap.entrySet().iterator();
+		while (mBytes > maxBytes && it.hasNext()) {
+			final Bitmap bitmap = it.next().getValue();
+			it.remove();
+			mBytes -= bitmap.getByteCount();
+			mEvictions++;
+		}
+	}
+
+	// The key of a decoded thumbnail.
+	static class Key {
+		private final Path mPath;
+		private final int mType;
+		private final long mVersion;
+
+		Key(final Path path, final int type, final long version) {
+			mPath = path;
+			mType = type;
+			mVersion = version;
+		}
+
+		@Override
+		public boolean equals(final Object o) {
+			if (!(o instanceof Key)) return false;
+			final Key key = (Key) o;
+			return mPath == key.mPath && mType == key.mType && mVersion == key.mVersion;
+		}
+
+		@Override
+		public int hashCode() {
+			return (mPath.hashCode() * 31 + mType) * 31 + (int) (mVersion ^ mVersion >>> 32);
+		}
+	}
+}
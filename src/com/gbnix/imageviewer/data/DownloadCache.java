@@ -16,8 +16,14 @@
 
 package com.gbnix.imageviewer.data;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.net.URL;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 
@@ -26,13 +32,16 @@ import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Process;
 
 import com.gbnix.imageviewer.app.GalleryApp;
+import com.gbnix.imageviewer.common.LastAccessTracker;
 import com.gbnix.imageviewer.common.LruCache;
 import com.gbnix.imageviewer.common.Utils;
 import com.gbnix.imageviewer.data.DownloadEntry.Columns;
 import com.gbnix.imageviewer.util.Future;
 import com.gbnix.imageviewer.util.FutureListener;
+import com.gbnix.imageviewer.util.PriorityThreadFactory;
 import com.gbnix.imageviewer.util.ThreadPool;
 import com.gbnix.imageviewer.util.ThreadPool.CancelListener;
 import com.gbnix.imageviewer.util.ThreadPool.Job;
@@ -40,24 +49,48 @@ import com.gbnix.imageviewer.util.ThreadPool.JobContext;
 
 public class DownloadCache {
 	private static final String TAG = "DownloadCache";
-	private static final int MAX_DELETE_COUNT = 16;
+	// Once the cache grows over its capacity, entries are evicted until it is
+	// back under this percentage of it.
+	private static final int LOW_WATERMARK_PERCENT = 90;
+	private static final int EVICTION_BATCH = 32;
 	private static final int LRU_CAPACITY = 4;
 
+	// A download which doesn't finish leaves its bytes in a partial file,
+	// and a later download of the same url resumes from there. The info
+	// file next to it records what the server said about the resource.
+	private static final String PARTIAL_PREFIX = "partial-";
+	private static final String PARTIAL_DATA_SUFFIX = ".tmp";
+	private static final String PARTIAL_INFO_SUFFIX = ".info";
+	private static final long PARTIAL_MAX_AGE = 24 * 60 * 60 * 1000; // 1 day
+
+	// Entries older than this are checked with a conditional request before
+	// they are used again.
+	private static final long FRESHNESS_PERIOD = 24 * 60 * 60 * 1000; // 1 day
+
 	private static final String TABLE_NAME = DownloadEntry.SCHEMA.getTableName();
 
-	private static final String QUERY_PROJECTION[] = { Columns.ID, Columns.DATA };
+	private static final String QUERY_PROJECTION[] = { Columns.ID, Columns.DATA, Columns.ETAG, Columns.LAST_MODIFIED,
+			Columns.LAST_UPDATED };
 	private static final String WHERE_HASH_AND_URL = String.format("%s = ? AND %s = ?", Columns.HASH_CODE,
 			Columns.CONTENT_URL);
 	private static final int QUERY_INDEX_ID = 0;
 	private static final int QUERY_INDEX_DATA = 1;
-
-	private static final String FREESPACE_PROJECTION[] = { Columns.ID, Columns.DATA, Columns.CONTENT_URL,
-			Columns.CONTENT_SIZE };
-	private static final String FREESPACE_ORDER_BY = String.format("%s ASC", Columns.LAST_ACCESS);
-	private static final int FREESPACE_IDNEX_ID = 0;
-	private static final int FREESPACE_IDNEX_DATA = 1;
-	private static final int FREESPACE_INDEX_CONTENT_URL = 2;
-	private static final int FREESPACE_INDEX_CONTENT_SIZE = 3;
+	private static final int QUERY_INDEX_ETAG = 2;
+	private static final int QUERY_INDEX_LAST_MODIFIED = 3;
+	private static final int QUERY_INDEX_LAST_UPDATED = 4;
+
+	// The eviction reads the entries in batches, in the order of the
+	// last_access index, each batch starting after the last entry read.
+	private static final String EVICTION_PROJECTION[] = { Columns.ID, Columns.DATA, Columns.CONTENT_URL,
+			Columns.CONTENT_SIZE, Columns.LAST_ACCESS };
+	private static final String EVICTION_WHERE = String.format("%s >= ? AND (%s > ? OR %s > ?)", Columns.LAST_ACCESS,
+			Columns.LAST_ACCESS, Columns.ID);
+	private static final String EVICTION_ORDER_BY = String.format("%s ASC, %s ASC", Columns.LAST_ACCESS, Columns.ID);
+	private static final int EVICTION_INDEX_ID = 0;
+	private static final int EVICTION_INDEX_DATA = 1;
+	private static final int EVICTION_INDEX_CONTENT_URL = 2;
+	private static final int EVICTION_INDEX_CONTENT_SIZE = 3;
+	private static final int EVICTION_INDEX_LAST_ACCESS = 4;
 
 	private static final String ID_WHERE = Columns.ID + " = ?";
 
@@ -66,22 +99,44 @@ public class DownloadCache {
 
 	private final LruCache<String, Entry> mEntryMap = new LruCache<String, Entry>(LRU_CAPACITY);
 	private final HashMap<String, DownloadTask> mTaskMap = new HashMap<String, DownloadTask>();
+	// The ids of the entries being evicted, guarded by mEntryMap.
+	private final HashSet<Long> mEvictingIds = new HashSet<Long>();
 	private final File mRoot;
 	private final GalleryApp mApplication;
 	private final SQLiteDatabase mDatabase;
+	private final LastAccessTracker mAccessTracker;
 	private final long mCapacity;
 
+	// The number of ranges a large file is downloaded as in parallel.
+	private volatile int mSegmentCount = 1;
+
+	// Moving averages of the download speed (bytes per second) and of the
+	// size of the downloaded files, or 0 before the first download. Guarded
+	// by mTaskMap.
+	private long mBandwidth = 0;
+	private long mAverageFileSize = 0;
+
 	private long mTotalBytes = 0;
 	private boolean mInitialized = false;
+	private boolean mEvictionRequested = false;
 
 	public DownloadCache(final GalleryApp application, final File root, final long capacity) {
 		mRoot = Utils.checkNotNull(root);
 		mApplication = Utils.checkNotNull(application);
 		mCapacity = capacity;
 		mDatabase = new DatabaseHelper(application.getAndroidContext()).getWritableDatabase();
+		mAccessTracker = new LastAccessTracker(mDatabase, TABLE_NAME, Columns.ID, Columns.LAST_ACCESS);
 	}
 
 	public Entry download(final JobContext jc, final URL url) {
+		return download(jc, url, false);
+	}
+
+	// Like download(jc, url), but a background download only gets the network
+	// when no foreground one needs it, and shares the bandwidth with them. It
+	// becomes a foreground one if a foreground download of the same url is
+	// requested meanwhile.
+	public Entry download(final JobContext jc, final URL url, final boolean background) {
 		if (!mInitialized) {
 			initialize();
 		}
@@ -91,28 +146,43 @@ public class DownloadCache {
 		// First find in the entry-pool
 		synchronized (mEntryMap) {
 			final Entry entry = mEntryMap.get(stringUrl);
-			if (entry != null) {
+			if (entry != null && isFresh(entry)) {
 				updateLastAccess(entry.mId);
 				return entry;
 			}
 		}
 
-		// Then, find it in database
 		final TaskProxy proxy = new TaskProxy();
 		synchronized (mTaskMap) {
-			final Entry entry = findEntryInDatabase(stringUrl);
-			if (entry != null) {
-				updateLastAccess(entry.mId);
-				return entry;
-			}
-
-			// Finally, we need to download the file ....
-			// First check if we are downloading it now ...
+			// First check if we are downloading or revalidating it now ...
 			DownloadTask task = mTaskMap.get(stringUrl);
-			if (task == null) { // if not, start the download task now
-				task = new DownloadTask(stringUrl);
-				mTaskMap.put(stringUrl, task);
-				task.mFuture = mApplication.getThreadPool().submit(task, task);
+			if (task == null || (task.mCancelled && task.mNext == null)) {
+				// Then, find it in database
+				final Entry entry = findEntryInDatabase(stringUrl);
+				if (entry != null) {
+					updateLastAccess(entry.mId);
+					if (isFresh(entry)) return entry;
+				}
+
+				// Finally, we need to download the file, or to check that
+				// the stale entry is still valid ...
+				final DownloadTask newTask = new DownloadTask(stringUrl, entry, background);
+				if (task == null) {
+					mTaskMap.put(stringUrl, newTask);
+					newTask.mFuture = mApplication.getThreadPool().submit(newTask, newTask);
+				} else {
+					// A cancelled task may still be writing the partial file
+					// of the url: the new one starts once it is done.
+					task.mNext = newTask;
+				}
+				task = newTask;
+			} else {
+				if (task.mCancelled) {
+					task = task.mNext;
+				}
+				if (!background) {
+					task.mBackground = false;
+				}
 			}
 			task.addProxy(proxy);
 		}
@@ -120,6 +190,55 @@ public class DownloadCache {
 		return proxy.get(jc);
 	}
 
+	// Returns the entry of url if it is cached and fresh, or null. Unlike
+	// download(), this never touches the network.
+	public Entry lookup(final URL url) {
+		if (!mInitialized) {
+			initialize();
+		}
+
+		final String stringUrl = url.toString();
+		synchronized (mEntryMap) {
+			final Entry entry = mEntryMap.get(stringUrl);
+			if (entry != null) return isFresh(entry) ? entry : null;
+		}
+		final Entry entry = findEntryInDatabase(stringUrl);
+		return entry != null && isFresh(entry) ? entry : null;
+	}
+
+	// Sets the number of ranges a large file is downloaded as in parallel,
+	// where the server supports it. 1 downloads each file as a single stream.
+	public void setSegmentCount(final int count) {
+		mSegmentCount = Math.max(1, count);
+	}
+
+	// Returns the measured download speed in bytes per second, or 0 if
+	// nothing has been downloaded yet.
+	public long getBandwidth() {
+		synchronized (mTaskMap) {
+			return mBandwidth;
+		}
+	}
+
+	// Returns the average size of the downloaded files, or 0 if nothing has
+	// been downloaded yet.
+	public long getAverageFileSize() {
+		synchronized (mTaskMap) {
+			return mAverageFileSize;
+		}
+	}
+
+	// Takes a finished download into the averages. Only the bytes
+	// transferred count, not those resumed from a partial file.
+	private void recordDownload(final long fileSize, final long transferred, final long elapsed) {
+		synchronized (mTaskMap) {
+			mAverageFileSize = mAverageFileSize == 0 ? fileSize : (mAverageFileSize * 3 + fileSize) / 4;
+			if (transferred <= 0 || elapsed <= 0) return;
+			final long bandwidth = transferred * 1000 / elapsed;
+			mBandwidth = mBandwidth == 0 ? bandwidth : (mBandwidth * 3 + bandwidth) / 4;
+		}
+	}
+
 	private Entry findEntryInDatabase(final String stringUrl) {
 		final long hash = Utils.crc64Long(stringUrl);
 		final String whereArgs[] = { String.valueOf(hash), stringUrl };
@@ -131,9 +250,13 @@ public class DownloadCache {
 				final long id = cursor.getInt(QUERY_INDEX_ID);
 				Entry entry = null;
 				synchronized (mEntryMap) {
+					// Its file may be deleted any time now.
+					if (mEvictingIds.contains(id)) return null;
 					entry = mEntryMap.get(stringUrl);
-					if (entry == null) {
-						entry = new Entry(id, file);
+					// The entry in the pool may be one replaced since.
+					if (entry == null || entry.mId != id) {
+						entry = new Entry(id, file, cursor.getString(QUERY_INDEX_ETAG),
+								cursor.getString(QUERY_INDEX_LAST_MODIFIED), cursor.getLong(QUERY_INDEX_LAST_UPDATED));
 						mEntryMap.put(stringUrl, entry);
 					}
 				}
@@ -145,31 +268,78 @@ public class DownloadCache {
 		return null;
 	}
 
-	private synchronized void freeSomeSpaceIfNeed(int maxDeleteFileCount) {
-		if (mTotalBytes <= mCapacity) return;
-		final Cursor cursor = mDatabase.query(TABLE_NAME, FREESPACE_PROJECTION, null, null, null, null,
-				FREESPACE_ORDER_BY);
-		try {
-			while (maxDeleteFileCount > 0 && mTotalBytes > mCapacity && cursor.moveToNext()) {
-				final long id = cursor.getLong(FREESPACE_IDNEX_ID);
-				final String url = cursor.getString(FREESPACE_INDEX_CONTENT_URL);
-				final long size = cursor.getLong(FREESPACE_INDEX_CONTENT_SIZE);
-				final String path = cursor.getString(FREESPACE_IDNEX_DATA);
-				boolean containsKey;
-				synchronized (mEntryMap) {
-					containsKey = mEntryMap.containsKey(url);
+	// Called by the eviction thread. Evicts the least recently used entries
+	// until the cache is under the low watermark, skipping the entries in
+	// use. The lock of the cache is only held to update mTotalBytes.
+	private void evict() {
+		// The order of the eviction needs the latest access times.
+		mAccessTracker.flush();
+		final long lowWatermark = mCapacity / 100 * LOW_WATERMARK_PERCENT;
+		final ArrayList<Long> ids = new ArrayList<Long>();
+		final ArrayList<String> paths = new ArrayList<String>();
+		long lastAccess = Long.MIN_VALUE;
+		long lastId = Long.MIN_VALUE;
+		long bytesToFree = getTotalBytes() - lowWatermark;
+		while (bytesToFree > 0) {
+			final String args[] = { String.valueOf(lastAccess), String.valueOf(lastAccess), String.valueOf(lastId) };
+			final Cursor cursor = mDatabase.query(TABLE_NAME, EVICTION_PROJECTION, EVICTION_WHERE, args, null, null,
+					EVICTION_ORDER_BY, String.valueOf(EVICTION_BATCH));
+			long freedBytes = 0;
+			try {
+				if (cursor.getCount() == 0) return;
+				while (freedBytes < bytesToFree && cursor.moveToNext()) {
+					final long id = cursor.getLong(EVICTION_INDEX_ID);
+					lastId = id;
+					lastAccess = cursor.getLong(EVICTION_INDEX_LAST_ACCESS);
+					synchronized (mEntryMap) {
+						// skip delete, since it is being used
+						if (mEntryMap.containsKey(cursor.getString(EVICTION_INDEX_CONTENT_URL))) {
+							continue;
+						}
+						mEvictingIds.add(id);
+					}
+					ids.add(id);
+					paths.add(cursor.getString(EVICTION_INDEX_DATA));
+					freedBytes += cursor.getLong(EVICTION_INDEX_CONTENT_SIZE);
 				}
-				if (!containsKey) {
-					--maxDeleteFileCount;
-					mTotalBytes -= size;
-					new File(path).delete();
+			} finally {
+				cursor.close();
+			}
+
+			mDatabase.beginTransaction();
+			try {
+				for (final Long id : ids) {
 					mDatabase.delete(TABLE_NAME, ID_WHERE, new String[] { String.valueOf(id) });
-				} else {
-					// skip delete, since it is being used
 				}
+				mDatabase.setTransactionSuccessful();
+			} finally {
+				mDatabase.endTransaction();
 			}
-		} finally {
-			cursor.close();
+			synchronized (this) {
+				mTotalBytes -= freedBytes;
+			}
+			for (final String path : paths) {
+				new File(path).delete();
+			}
+			synchronized (mEntryMap) {
+				mEvictingIds.removeAll(ids);
+			}
+			bytesToFree -= freedBytes;
+			ids.clear();
+			paths.clear();
+		}
+	}
+
+	private synchronized long getTotalBytes() {
+		return mTotalBytes;
+	}
+
+	// Wakes up the eviction thread if the cache is over its capacity.
+	// should be used in synchronized block of this
+	private void requestEvictionIfNeeded() {
+		if (mTotalBytes > mCapacity) {
+			mEvictionRequested = true;
+			notifyAll();
 		}
 	}
 
@@ -190,12 +360,66 @@ public class DownloadCache {
 		} finally {
 			cursor.close();
 		}
-		if (mTotalBytes > mCapacity) {
-			freeSomeSpaceIfNeed(MAX_DELETE_COUNT);
+		final Thread evictor = new PriorityThreadFactory("download-cache-evictor", Process.THREAD_PRIORITY_BACKGROUND)
+				.newThread(new Evictor());
+		evictor.setDaemon(true);
+		evictor.start();
+		requestEvictionIfNeeded();
+		deleteStalePartialFiles();
+	}
+
+	// Partial files which were not resumed for a while are unlikely to be.
+	private void deleteStalePartialFiles() {
+		final File[] files = mRoot.listFiles();
+		if (files == null) return;
+		final long now = System.currentTimeMillis();
+		for (final File file : files) {
+			if (file.getName().startsWith(PARTIAL_PREFIX) && now - file.lastModified() > PARTIAL_MAX_AGE) {
+				file.delete();
+			}
+		}
+	}
+
+	private static DownloadUtils.ResourceInfo readPartialInfo(final File file, final String url) {
+		final DownloadUtils.ResourceInfo info = new DownloadUtils.ResourceInfo();
+		if (!file.exists()) return info;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			// The name of the file is a hash of the url, check it is the same.
+			if (url.equals(in.readUTF())) {
+				info.validator = in.readUTF();
+				info.length = in.readLong();
+			}
+		} catch (final IOException e) {
+			Log.w(TAG, "fail to read " + file, e);
+		} finally {
+			Utils.closeSilently(in);
+		}
+		return info;
+	}
+
+	private static void writePartialInfo(final File file, final String url, final DownloadUtils.ResourceInfo info)
+			throws IOException {
+		final DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+		try {
+			out.writeUTF(url);
+			out.writeUTF(info.validator);
+			out.writeLong(info.length);
+		} finally {
+			Utils.closeSilently(out);
 		}
 	}
 
-	private synchronized long insertEntry(final String url, final File file) {
+	// An entry is fresh if it was downloaded or revalidated recently, or if
+	// it can't be revalidated at all.
+	private static boolean isFresh(final Entry entry) {
+		if (entry.mETag == null && entry.mLastModified == null) return true;
+		final long age = System.currentTimeMillis() - entry.mLastUpdated;
+		return age >= 0 && age < FRESHNESS_PERIOD;
+	}
+
+	private synchronized long insertEntry(final String url, final File file, final DownloadUtils.ResourceInfo info) {
 		final long size = file.length();
 		mTotalBytes += size;
 
@@ -205,23 +429,57 @@ public class DownloadCache {
 		values.put(Columns.HASH_CODE, hashCode);
 		values.put(Columns.CONTENT_URL, url);
 		values.put(Columns.CONTENT_SIZE, size);
+		values.put(Columns.ETAG, info.eTag);
+		values.put(Columns.LAST_MODIFIED, info.lastModified);
 		values.put(Columns.LAST_UPDATED, System.currentTimeMillis());
-		return mDatabase.insert(TABLE_NAME, "", values);
+		values.put(Columns.LAST_ACCESS, System.currentTimeMillis());
+		final long id = mDatabase.insert(TABLE_NAME, "", values);
+		requestEvictionIfNeeded();
+		return id;
 	}
 
-	private void updateLastAccess(final long id) {
+	// Removes an entry replaced by a newer download of its url.
+	private synchronized void removeEntry(final Entry entry) {
+		mTotalBytes -= entry.cacheFile.length();
+		mDatabase.delete(TABLE_NAME, ID_WHERE, new String[] { String.valueOf(entry.mId) });
+		entry.cacheFile.delete();
+	}
+
+	// Marks an entry the server said is still valid as fresh again.
+	private void updateLastUpdated(final Entry entry) {
+		final long now = System.currentTimeMillis();
 		final ContentValues values = new ContentValues();
-		values.put(Columns.LAST_ACCESS, System.currentTimeMillis());
-		mDatabase.update(TABLE_NAME, values, ID_WHERE, new String[] { String.valueOf(id) });
+		values.put(Columns.LAST_UPDATED, now);
+		mDatabase.update(TABLE_NAME, values, ID_WHERE, new String[] { String.valueOf(entry.mId) });
+		entry.mLastUpdated = now;
+	}
+
+	private void updateLastAccess(final long id) {
+		mAccessTracker.record(id);
 	}
 
 	public class Entry {
 		public File cacheFile;
 		protected long mId;
+		private final String mETag;
+		private final String mLastModified;
+		private volatile long mLastUpdated;
 
-		Entry(final long id, final File cacheFile) {
+		Entry(final long id, final File cacheFile, final String eTag, final String lastModified,
+				final long lastUpdated) {
 			mId = id;
 			this.cacheFile = Utils.checkNotNull(cacheFile);
+			mETag = eTag;
+			mLastModified = lastModified;
+			mLastUpdated = lastUpdated;
+		}
+
+		// Returns a string which changes when the server has a new version
+		// of the file, or null if the server gave no validator for it.
+		public String getFingerprint() {
+			if (mETag != null) return "etag:" + mETag;
+			if (mLastModified != null) return "modified:" + mLastModified;
+			return null;
 		}
 	}
 
@@ -259,9 +517,30 @@ public class DownloadCache {
 		}
 	}
 
+	// Evicts entries whenever an insertion takes the cache over its capacity,
+	// so that downloads never wait for the eviction.
+	private class Evictor implements Runnable {
+		@Override
+		public void run() {
+			while (true) {
+				synchronized (DownloadCache.this) {
+					while (!mEvictionRequested) {
+						Utils.waitWithoutInterrupt(DownloadCache.this);
+					}
+					mEvictionRequested = false;
+				}
+				try {
+					evict();
+				} catch (final Throwable t) {
+					Log.w(TAG, "fail to evict", t);
+				}
+			}
+		}
+	}
+
 	private final class DatabaseHelper extends SQLiteOpenHelper {
 		public static final String DATABASE_NAME = "download.db";
-		public static final int DATABASE_VERSION = 2;
+		public static final int DATABASE_VERSION = 3;
 
 		public DatabaseHelper(final Context context) {
 			super(context, DATABASE_NAME, null, DATABASE_VERSION);
@@ -286,13 +565,27 @@ public class DownloadCache {
 		}
 	}
 
+	// A task stays in mTaskMap until it returns, even once cancelled, as it
+	// owns the partial file of its url until then. The requests coming for
+	// the url meanwhile wait for mNext, which is started afterwards.
 	private class DownloadTask implements Job<File>, FutureListener<File> {
 		private final HashSet<TaskProxy> mProxySet = new HashSet<TaskProxy>();
+		// Null until the task is started. Guarded by mTaskMap, as are
+		// mCancelled and mNext.
 		private Future<File> mFuture;
+		private boolean mCancelled;
+		private DownloadTask mNext;
 		private final String mUrl;
+		// The entry to revalidate, or null if there is none.
+		private final Entry mStale;
+		private DownloadUtils.ResourceInfo mInfo;
+		// Cleared when a foreground download of the url is requested.
+		private volatile boolean mBackground;
 
-		public DownloadTask(final String url) {
+		public DownloadTask(final String url, final Entry stale, final boolean background) {
 			mUrl = Utils.checkNotNull(url);
+			mStale = stale;
+			mBackground = background;
 		}
 
 		// should be used in synchronized block of mDatabase
@@ -304,64 +597,156 @@ public class DownloadCache {
 		@Override
 		public void onFutureDone(final Future<File> future) {
 			final File file = future.get();
+			// The stale entry is kept if the server said it is still valid,
+			// or if it couldn't be asked.
+			final boolean keepStale = mStale != null && file == mStale.cacheFile;
 			long id = 0;
-			if (file != null) { // insert to database
-				id = insertEntry(mUrl, file);
-			}
-
-			if (future.isCancelled()) {
-				Utils.assertTrue(mProxySet.isEmpty());
-				return;
+			if (file != null && !keepStale) { // insert to database
+				if (mStale != null) {
+					removeEntry(mStale);
+				}
+				id = insertEntry(mUrl, file, mInfo);
 			}
 
 			synchronized (mTaskMap) {
 				Entry entry = null;
 				synchronized (mEntryMap) {
-					if (file != null) {
-						entry = new Entry(id, file);
-						Utils.assertTrue(mEntryMap.put(mUrl, entry) == null);
+					if (keepStale) {
+						entry = mStale;
+					} else if (file != null) {
+						entry = new Entry(id, file, mInfo.eTag, mInfo.lastModified, System.currentTimeMillis());
+					}
+					if (entry != null) {
+						final Entry old = mEntryMap.put(mUrl, entry);
+						Utils.assertTrue(old == null || old == mStale);
 					}
 				}
+				Utils.assertTrue(!mCancelled || mProxySet.isEmpty());
 				for (final TaskProxy proxy : mProxySet) {
 					proxy.setResult(entry);
 				}
-				mTaskMap.remove(mUrl);
-				freeSomeSpaceIfNeed(MAX_DELETE_COUNT);
+
+				final DownloadTask next = mNext;
+				if (next == null || next.mProxySet.isEmpty()) {
+					mTaskMap.remove(mUrl);
+				} else if (entry != null && !keepStale) {
+					// This task got the file after all.
+					mTaskMap.remove(mUrl);
+					for (final TaskProxy proxy : next.mProxySet) {
+						proxy.setResult(entry);
+					}
+				} else {
+					mTaskMap.put(mUrl, next);
+					next.mFuture = mApplication.getThreadPool().submit(next, next);
+				}
 			}
 		}
 
 		public void removeProxy(final TaskProxy proxy) {
 			synchronized (mTaskMap) {
 				Utils.assertTrue(mProxySet.remove(proxy));
-				if (mProxySet.isEmpty()) {
+				// A task not started yet is dropped by the one before it.
+				if (mProxySet.isEmpty() && mFuture != null) {
+					mCancelled = true;
 					mFuture.cancel();
-					mTaskMap.remove(mUrl);
 				}
 			}
 		}
 
 		@Override
 		public File run(final JobContext jc) {
-			// TODO: utilize etag
-			jc.setMode(ThreadPool.MODE_NETWORK);
-			File tempFile = null;
+			final boolean background = mBackground;
+			jc.setMode(background ? ThreadPool.MODE_NETWORK_BACKGROUND : ThreadPool.MODE_NETWORK);
+			// A background download uses a single stream, and goes
+			// foreground between two reads once it is asked to.
+			final JobContext context = background ? new PromotableContext(jc) : jc;
+			final int segmentCount = background ? 1 : mSegmentCount;
+			final String name = PARTIAL_PREFIX + Long.toHexString(Utils.crc64Long(mUrl));
+			final File partialFile = new File(mRoot, name + PARTIAL_DATA_SUFFIX);
+			final File infoFile = new File(mRoot, name + PARTIAL_INFO_SUFFIX);
 			try {
 				final URL url = new URL(mUrl);
-				tempFile = File.createTempFile("cache", ".tmp", mRoot);
-				// download from url to tempFile
-				jc.setMode(ThreadPool.MODE_NETWORK);
-				final boolean downloaded = DownloadUtils.requestDownload(jc, url, tempFile);
+				final DownloadUtils.ResourceInfo info = readPartialInfo(infoFile, mUrl);
+				final long resumedLength = partialFile.length();
+				final long startTime = System.currentTimeMillis();
+				final int result;
+				if (mStale != null && !partialFile.exists()) {
+					// ask the server whether the stale entry is still valid
+					info.eTag = mStale.mETag;
+					info.lastModified = mStale.mLastModified;
+					result = DownloadUtils.revalidate(context, url, partialFile, info, mApplication.getThreadPool(),
+							segmentCount);
+				} else {
+					// download from url to partialFile. If there is a stale
+					// entry, the partial file is a newer version of it.
+					result = DownloadUtils.resumeDownload(context, url, partialFile, info,
+							mApplication.getThreadPool(), segmentCount) ? DownloadUtils.RESULT_DOWNLOADED
+							: DownloadUtils.RESULT_FAILED;
+				}
 				jc.setMode(ThreadPool.MODE_NONE);
-				if (downloaded) return tempFile;
+				if (result == DownloadUtils.RESULT_NOT_MODIFIED) {
+					updateLastUpdated(mStale);
+					return mStale.cacheFile;
+				} else if (result == DownloadUtils.RESULT_DOWNLOADED) {
+					final long length = partialFile.length();
+					// The bytes resumed from the partial file don't count.
+					recordDownload(length, length > resumedLength ? length - resumedLength : length,
+							System.currentTimeMillis() - startTime);
+					mInfo = info;
+					infoFile.delete();
+					final File file = File.createTempFile("cache", ".tmp", mRoot);
+					if (partialFile.renameTo(file)) return file;
+					file.delete();
+				} else if (partialFile.exists()) {
+					// keep it for the next download of the url
+					writePartialInfo(infoFile, mUrl, info);
+					return mStale == null ? null : mStale.cacheFile;
+				}
 			} catch (final Exception e) {
 				Log.e(TAG, String.format("fail to download %s", mUrl), e);
 			} finally {
 				jc.setMode(ThreadPool.MODE_NONE);
 			}
-			if (tempFile != null) {
-				tempFile.delete();
+			partialFile.delete();
+			infoFile.delete();
+			// A stale entry is better than nothing, e.g. when we are offline.
+			return mStale == null ? null : mStale.cacheFile;
+		}
+
+		// The context given to a background download. It switches the job to
+		// the foreground network mode at the next read after mBackground is
+		// cleared.
+		private class PromotableContext implements JobContext {
+			private final JobContext mContext;
+			private boolean mPromoted;
+
+			public PromotableContext(final JobContext context) {
+				mContext = context;
+			}
+
+			@Override
+			public boolean isCancelled() {
+				return mContext.isCancelled();
+			}
+
+			@Override
+			public void setCancelListener(final CancelListener listener) {
+				mContext.setCancelListener(listener);
+			}
+
+			@Override
+			public boolean setMode(final int mode) {
+				return mContext.setMode(mode);
+			}
+
+			@Override
+			public boolean throttle(final int bytes) {
+				if (!mPromoted && !mBackground) {
+					mPromoted = true;
+					if (!mContext.setMode(ThreadPool.MODE_NETWORK)) return false;
+				}
+				return mContext.throttle(bytes);
 			}
-			return null;
 		}
 	}
 }
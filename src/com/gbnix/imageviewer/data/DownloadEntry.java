@@ -34,6 +34,9 @@ public class DownloadEntry extends Entry {
 	@Column("etag")
 	public String eTag;
 
+	@Column("last_modified")
+	public String lastModified;
+
 	@Column(value = "last_access", indexed = true)
 	public long lastAccessTime;
 
@@ -50,8 +53,9 @@ public class DownloadEntry extends Entry {
 		// fields are needed to generate database.
 		return new StringBuilder().append("hash_code: ").append(hashCode).append(", ").append("content_url")
 				.append(contentUrl).append(", ").append("_size").append(contentSize).append(", ").append("etag")
-				.append(eTag).append(", ").append("last_access").append(lastAccessTime).append(", ")
-				.append("last_updated").append(lastUpdatedTime).append(",").append("_data").append(path).toString();
+				.append(eTag).append(", ").append("last_modified").append(lastModified).append(", ")
+				.append("last_access").append(lastAccessTime).append(", ").append("last_updated")
+				.append(lastUpdatedTime).append(",").append("_data").append(path).toString();
 	}
 
 	public static interface Columns extends Entry.Columns {
@@ -59,6 +63,7 @@ public class DownloadEntry extends Entry {
 		public static final String CONTENT_URL = "content_url";
 		public static final String CONTENT_SIZE = "_size";
 		public static final String ETAG = "etag";
+		public static final String LAST_MODIFIED = "last_modified";
 		public static final String LAST_ACCESS = "last_access";
 		public static final String LAST_UPDATED = "last_updated";
 		public static final String DATA = "_data";
@@ -0,0 +1,206 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.data;
+
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import com.gbnix.imageviewer.app.GalleryApp;
+import com.gbnix.imageviewer.common.Utils;
+import com.gbnix.imageviewer.util.Future;
+import com.gbnix.imageviewer.util.FutureListener;
+import com.gbnix.imageviewer.util.ThreadPool;
+import com.gbnix.imageviewer.util.ThreadPool.Job;
+import com.gbnix.imageviewer.util.ThreadPool.JobContext;
+
+// Downloads the remote images around the one being viewed into the
+// DownloadCache before they are shown, so swiping to them doesn't wait for
+// the network.
+//
+// The viewer gives the items of its window in the order they are wanted, and
+// they are downloaded one at a time, as background downloads: the images on
+// the screen take the network first, and the prefetch only gets a share of
+// the bandwidth while they load. If a window update drops the item being
+// downloaded, its download is cancelled; the partial file is kept by the
+// DownloadCache and resumed if the item is wanted again.
+//
+// The size of the window follows the download speed measured by the
+// DownloadCache: we queue as many images ahead as can be downloaded in
+// LOOKAHEAD_TIME. A slow link then spends its bandwidth on the next images
+// rather than on images the reader may never reach.
+public class DownloadPrefetcher {
+	private static final String TAG = "DownloadPrefetcher";
+
+	private static final long LOOKAHEAD_TIME = 20; // seconds
+	private static final int DEFAULT_AHEAD_COUNT = 3;
+	private static final int MIN_AHEAD_COUNT = 1;
+	private static final int MAX_AHEAD_COUNT = 8;
+	private static final int MAX_BEHIND_COUNT = 2;
+
+	// The urls already prefetched are forgotten past this count.
+	private static final int MAX_DONE_COUNT = 256;
+	// A url which failed to download is not tried again before this delay.
+	private static final long RETRY_DELAY = 60 * 1000; // ms
+
+	private final GalleryApp mApplication;
+
+	// Guarded by this.
+	private final ArrayList<URL> mWanted = new ArrayList<URL>();
+	private final HashSet<String> mDone = new HashSet<String>();
+	// The time each url failed at.
+	private final HashMap<String, Long> mFailed = new HashMap<String, Long>();
+	private Future<Boolean> mTask;
+	private String mTaskUrl;
+
+	private volatile int mAheadCount = DEFAULT_AHEAD_COUNT;
+	private volatile int mBehindCount = getBehindCount(DEFAULT_AHEAD_COUNT);
+
+	private final FutureListener<Boolean> mTaskListener = new FutureListener<Boolean>() {
+		@Override
+		public void onFutureDone(final Future<Boolean> future) {
+			synchronized (DownloadPrefetcher.this) {
+				if (future != mTask) return;
+				// A cancelled download may be wanted again later.
+				if (!future.isCancelled()) {
+					if (Boolean.TRUE.equals(future.get())) {
+						if (mDone.size() >= MAX_DONE_COUNT) {
+							mDone.clear();
+						}
+						mDone.add(mTaskUrl);
+						mFailed.remove(mTaskUrl);
+					} else {
+						if (mFailed.size() >= MAX_DONE_COUNT) {
+							mFailed.clear();
+						}
+						mFailed.put(mTaskUrl, System.currentTimeMillis());
+					}
+				}
+				mTask = null;
+				mTaskUrl = null;
+				startNextLocked();
+			}
+		}
+	};
+
+	public DownloadPrefetcher(final GalleryApp application) {
+		mApplication = Utils.checkNotNull(application);
+	}
+
+	// Returns how many items after the current one should be prefetched.
+	public int getAheadCount() {
+		return mAheadCount;
+	}
+
+	// Returns how many items before the current one should be prefetched.
+	public int getBehindCount() {
+		return mBehindCount;
+	}
+
+	// Sets the items to prefetch, the most wanted first. The items which
+	// are not remote images are ignored.
+	public synchronized void update(final List<MediaItem> items) {
+		mWanted.clear();
+		boolean keepTask = false;
+		for (final MediaItem item : items) {
+			if (!(item instanceof UriImage)) {
+				continue;
+			}
+			final URL url = ((UriImage) item).getDownloadUrl();
+			if (url == null) {
+				continue;
+			}
+			mWanted.add(url);
+			// URL.equals() may resolve the host, so compare the strings.
+			keepTask |= url.toString().equals(mTaskUrl);
+		}
+		if (mTask == null) {
+			startNextLocked();
+		} else if (!keepTask) {
+			// The next one is started once it is done.
+			mTask.cancel();
+		}
+	}
+
+	public synchronized void stop() {
+		mWanted.clear();
+		if (mTask != null) {
+			mTask.cancel();
+		}
+	}
+
+	private void startNextLocked() {
+		final long now = System.currentTimeMillis();
+		for (final URL url : mWanted) {
+			final String stringUrl = url.toString();
+			if (mDone.contains(stringUrl)) {
+				continue;
+			}
+			final Long failTime = mFailed.get(stringUrl);
+			if (failTime != null && now - failTime < RETRY_DELAY) {
+				continue;
+			}
+			mTaskUrl = stringUrl;
+			mTask = mApplication.getThreadPool().submit(new PrefetchJob(url), mTaskListener);
+			return;
+		}
+	}
+
+	// Called after each prefetch, as the download speed may have changed.
+	private void updateWindow(final DownloadCache cache) {
+		final long bandwidth = cache.getBandwidth();
+		final long fileSize = cache.getAverageFileSize();
+		if (bandwidth == 0 || fileSize == 0) return;
+		final long count = bandwidth * LOOKAHEAD_TIME / fileSize;
+		final int ahead = (int) Math.max(MIN_AHEAD_COUNT, Math.min(MAX_AHEAD_COUNT, count));
+		if (ahead != mAheadCount) {
+			Log.d(TAG, "prefetch " + ahead + " ahead at " + bandwidth + " bytes/s");
+		}
+		mAheadCount = ahead;
+		mBehindCount = getBehindCount(ahead);
+	}
+
+	private static int getBehindCount(final int aheadCount) {
+		return Utils.clamp(aheadCount / 4, 1, MAX_BEHIND_COUNT);
+	}
+
+	// Returns true if the image is in the DownloadCache.
+	private class PrefetchJob implements Job<Boolean> {
+		private final URL mUrl;
+
+		public PrefetchJob(final URL url) {
+			mUrl = url;
+		}
+
+		@Override
+		public Boolean run(final JobContext jc) {
+			// The DownloadCache takes the network resource for the download.
+			jc.setMode(ThreadPool.MODE_NONE);
+			final DownloadCache cache = mApplication.getDownloadCache();
+			final DownloadCache.Entry entry = cache.download(jc, mUrl, true);
+			if (jc.isCancelled()) return false;
+			if (entry == null) {
+				Log.w(TAG, "prefetch failed " + mUrl);
+				return false;
+			}
+			updateWindow(cache);
+			return true;
+		}
+	}
+}
@@ -24,25 +24,61 @@ import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 
 import com.gbnix.imageviewer.common.Utils;
+import com.gbnix.imageviewer.util.ThreadPool;
 import com.gbnix.imageviewer.util.ThreadPool.CancelListener;
 import com.gbnix.imageviewer.util.ThreadPool.JobContext;
 
 public class DownloadUtils {
 	private static final String TAG = "DownloadService";
+	private static final int MAX_REDIRECTS = 8;
+	// Not defined by HttpURLConnection.
+	private static final int HTTP_TEMPORARY_REDIRECT = 307;
+	private static final int HTTP_PERMANENT_REDIRECT = 308;
+	// Smaller segments are not worth a request of their own.
+	private static final int MIN_SEGMENT_LENGTH = 512 * 1024;
+
+	private static final int MIN_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_BUFFER_SIZE = 256 * 1024;
+	private static volatile int sBufferSize = 128 * 1024;
+
+	// The downloads run on the long-lived threads of the ThreadPool, so each
+	// thread keeps its transfer buffer instead of allocating one per file.
+	private static final ThreadLocal<ByteBuffer> sTransferBuffer = new ThreadLocal<ByteBuffer>();
+
+	// The results of revalidate().
+	public static final int RESULT_FAILED = 0;
+	public static final int RESULT_DOWNLOADED = 1;
+	public static final int RESULT_NOT_MODIFIED = 2;
+
+	// What the server told us about a resource: a validator to resume its
+	// download with If-Range, its total length (-1 if unknown), and its
+	// ETag and Last-Modified headers to make conditional requests with.
+	public static class ResourceInfo {
+		public String validator;
+		public long length = -1;
+		public String eTag;
+		public String lastModified;
+	}
 
 	public static boolean download(final JobContext jc, final URL url, final OutputStream output) {
-		InputStream input = null;
+		HttpConnectionManager.Connection conn = null;
 		try {
-			input = openInputStream(url);
-			dump(jc, input, output);
+			conn = openConnection(jc, url, 0, null, false);
+			dump(jc, conn.getInputStream(), output);
 			return true;
 		} catch (final Throwable t) {
 			Log.w(TAG, "fail to download", t);
 			return false;
 		} finally {
-			Utils.closeSilently(input);
+			if (conn != null) {
+				conn.close();
+			}
 		}
 	}
 
@@ -57,7 +93,7 @@ public class DownloadUtils {
 			}
 		});
 		while (rc > 0) {
-			if (jc.isCancelled()) throw new InterruptedIOException();
+			if (!jc.throttle(rc)) throw new InterruptedIOException();
 			os.write(buffer, 0, rc);
 			rc = is.read(buffer, 0, buffer.length);
 		}
@@ -65,26 +101,266 @@ public class DownloadUtils {
 		Thread.interrupted(); // consume the interrupt signal
 	}
 
+	// Copies is to out like dump(), through the transfer buffer of the
+	// thread. Few large writes to the file cost much less than many small
+	// ones.
+	public static void transfer(final JobContext jc, final InputStream is, final FileChannel out) throws IOException {
+		final ReadableByteChannel in = Channels.newChannel(is);
+		final ByteBuffer buffer = getTransferBuffer();
+		final Thread thread = Thread.currentThread();
+		jc.setCancelListener(new CancelListener() {
+			@Override
+			public void onCancel() {
+				thread.interrupt();
+			}
+		});
+		int rc;
+		while ((rc = fill(in, buffer)) > 0) {
+			if (!jc.throttle(rc)) throw new InterruptedIOException();
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				out.write(buffer);
+			}
+			buffer.clear();
+		}
+		jc.setCancelListener(null);
+		Thread.interrupted(); // consume the interrupt signal
+	}
+
+	// Sets the size of the buffers used to write downloads to files. It is
+	// kept between 64K and 256K.
+	public static void setBufferSize(final int size) {
+		sBufferSize = Utils.clamp(size, MIN_BUFFER_SIZE, MAX_BUFFER_SIZE);
+	}
+
+	// Returns the cleared transfer buffer of the current thread.
+	static ByteBuffer getTransferBuffer() {
+		ByteBuffer buffer = sTransferBuffer.get();
+		if (buffer == null || buffer.capacity() != sBufferSize) {
+			buffer = ByteBuffer.allocateDirect(sBufferSize);
+			sTransferBuffer.set(buffer);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	// Reads from in until the buffer is full or the stream ends. Returns the
+	// number of bytes read, 0 at the end of the stream.
+	static int fill(final ReadableByteChannel in, final ByteBuffer buffer) throws IOException {
+		final int start = buffer.position();
+		while (buffer.hasRemaining()) {
+			if (in.read(buffer) < 0) break;
+		}
+		return buffer.position() - start;
+	}
+
 	public static boolean requestDownload(final JobContext jc, final URL url, final File file) {
 		FileOutputStream fos = null;
+		HttpConnectionManager.Connection conn = null;
 		try {
 			fos = new FileOutputStream(file);
-			return download(jc, url, fos);
+			conn = openConnection(jc, url, 0, null, false);
+			transfer(jc, conn.getInputStream(), fos.getChannel());
+			return true;
 		} catch (final Throwable t) {
+			Log.w(TAG, "fail to download", t);
 			return false;
 		} finally {
+			if (conn != null) {
+				conn.close();
+			}
 			Utils.closeSilently(fos);
 		}
 	}
 	
-	private static InputStream openInputStream(URL url) throws IOException {
-		HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-		int respCode = conn.getResponseCode();
-		while (respCode == 301 || respCode == 302) {
-			final String loc = conn.getHeaderField("Location");
-			conn = (HttpURLConnection) new URL(loc).openConnection();
-			respCode = conn.getResponseCode();
+	// Downloads url into file. If the file already holds the first bytes of
+	// the resource described by info, only the rest of it is requested, and
+	// the server sends the whole resource again only if it has changed. The
+	// info is updated from the response.
+	//
+	// Returns true if the file holds the whole resource. Otherwise the bytes
+	// downloaded so far are kept in the file if the download can be resumed
+	// later with the returned info, and the file is deleted if it can't.
+	public static boolean resumeDownload(final JobContext jc, final URL url, final File file, final ResourceInfo info) {
+		return resumeDownload(jc, url, file, info, null, 1);
+	}
+
+	// Like resumeDownload() above, but a large resource downloaded from its
+	// start is fetched as segmentCount ranges in parallel, on jobs of the
+	// given pool, if the server supports ranges.
+	public static boolean resumeDownload(final JobContext jc, final URL url, final File file, final ResourceInfo info,
+			final ThreadPool pool, final int segmentCount) {
+		return fetch(jc, url, file, info, false, pool, segmentCount) == RESULT_DOWNLOADED;
+	}
+
+	// Downloads url into file, unless the resource still matches the ETag
+	// and Last-Modified of info, which describe a copy we already have.
+	// Returns RESULT_NOT_MODIFIED if our copy is still valid,
+	// RESULT_DOWNLOADED if file holds the new resource and info describes
+	// it, or RESULT_FAILED as resumeDownload() fails.
+	public static int revalidate(final JobContext jc, final URL url, final File file, final ResourceInfo info,
+			final ThreadPool pool, final int segmentCount) {
+		return fetch(jc, url, file, info, true, pool, segmentCount);
+	}
+
+	private static int fetch(final JobContext jc, final URL url, final File file, final ResourceInfo info,
+			final boolean conditional, final ThreadPool pool, final int segmentCount) {
+		long offset = file.length();
+		if (offset > 0 && (conditional || info.validator == null || info.length < 0 || offset >= info.length)) {
+			// We can't tell whether the bytes we have are still valid.
+			offset = 0;
+		}
+		boolean finished = false;
+		boolean segmented = false;
+		HttpConnectionManager.Connection conn = null;
+		InputStream input = null;
+		FileOutputStream output = null;
+		try {
+			conn = openConnection(jc, url, offset, info, conditional);
+			final int respCode = conn.getResponseCode();
+			if (respCode == HttpURLConnection.HTTP_NOT_MODIFIED && conditional) {
+				file.delete();
+				return RESULT_NOT_MODIFIED;
+			} else if (respCode == HttpURLConnection.HTTP_PARTIAL && offset > 0 && parseRangeStart(conn) == offset) {
+				info.length = parseRangeLength(conn);
+			} else if (respCode == HttpURLConnection.HTTP_OK) {
+				// Either we asked for everything, or the resource has changed
+				// since the first bytes were downloaded.
+				offset = 0;
+				info.eTag = conn.getHeaderField("ETag");
+				info.lastModified = conn.getHeaderField("Last-Modified");
+				info.validator = getValidator(info);
+				info.length = parseLong(conn.getHeaderField("Content-Length"));
+				segmented = pool != null && segmentCount > 1 && info.validator != null
+						&& info.length >= (long) segmentCount * MIN_SEGMENT_LENGTH
+						&& "bytes".equals(conn.getHeaderField("Accept-Ranges"));
+			} else {
+				Log.w(TAG, "unexpected response " + respCode + " for " + url);
+				file.delete();
+				return RESULT_FAILED;
+			}
+			input = conn.getInputStream();
+			if (segmented) {
+				// The ranges are asked from where the redirects led.
+				finished = SegmentedDownload.download(jc, pool, conn, input, file, info, segmentCount);
+			} else {
+				output = new FileOutputStream(file, offset > 0);
+				transfer(jc, input, output.getChannel());
+				finished = true;
+			}
+		} catch (final Throwable t) {
+			Log.w(TAG, "fail to download", t);
+		} finally {
+			Utils.closeSilently(output);
+			if (conn != null) {
+				conn.close();
+			}
+			// transfer() leaves its cancel listener and the interrupt behind
+			// if it is cancelled.
+			jc.setCancelListener(null);
+			Thread.interrupted();
+		}
+
+		// Only a file of the announced length is complete. A file whose
+		// length was not announced is complete if the server said so by
+		// closing the stream.
+		final long length = file.length();
+		if (info.length >= 0 ? length == info.length : finished) return RESULT_DOWNLOADED;
+		if (segmented && length < info.length && !jc.isCancelled()) {
+			// Go on with a single stream from where the segments stopped.
+			return fetch(jc, url, file, info, false, null, 1);
 		}
-		return conn.getInputStream();
+		if (info.validator == null || info.length < 0 || length > info.length) {
+			file.delete();
+		}
+		return RESULT_FAILED;
+	}
+
+	// Opens a connection to url, following the redirects. If offset is
+	// positive, asks for the bytes from offset on, if the resource still
+	// matches the validator of info. If conditional is true, asks for the
+	// resource only if it doesn't match the ETag and Last-Modified of info.
+	//
+	// The permanent redirects are remembered by HttpConnectionManager, which
+	// forgets them again if their target fails.
+	private static HttpConnectionManager.Connection openConnection(final JobContext jc, final URL url,
+			final long offset, final ResourceInfo info, final boolean conditional) throws IOException {
+		URL location = url;
+		boolean redirected = HttpConnectionManager.resolve(url) != url;
+		for (int i = 0; i <= MAX_REDIRECTS; i++) {
+			final HttpConnectionManager.Connection conn = HttpConnectionManager.open(jc, location);
+			boolean returned = false;
+			try {
+				// The offsets are those of the resource, not of a compressed
+				// stream of it.
+				conn.setRequestProperty("Accept-Encoding", "identity");
+				if (offset > 0) {
+					conn.setRequestProperty("Range", "bytes=" + offset + "-");
+					conn.setRequestProperty("If-Range", info.validator);
+				}
+				if (conditional && info.eTag != null) {
+					conn.setRequestProperty("If-None-Match", info.eTag);
+				}
+				if (conditional && info.lastModified != null) {
+					conn.setRequestProperty("If-Modified-Since", info.lastModified);
+				}
+				final int respCode = conn.getResponseCode();
+				if (redirected && respCode >= HttpURLConnection.HTTP_BAD_REQUEST) {
+					// Where the url was moved to fails: ask the url itself again.
+					HttpConnectionManager.removePermanentRedirect(url);
+					redirected = false;
+					location = url;
+					continue;
+				}
+				final boolean permanent = respCode == HttpURLConnection.HTTP_MOVED_PERM
+						|| respCode == HTTP_PERMANENT_REDIRECT;
+				if (!permanent && respCode != HttpURLConnection.HTTP_MOVED_TEMP
+						&& respCode != HttpURLConnection.HTTP_SEE_OTHER && respCode != HTTP_TEMPORARY_REDIRECT) {
+					returned = true;
+					return conn;
+				}
+				final URL next = new URL(conn.getURL(), conn.getHeaderField("Location"));
+				if (permanent) {
+					HttpConnectionManager.addPermanentRedirect(conn.getURL(), next);
+				}
+				location = next;
+			} finally {
+				if (!returned) {
+					conn.close();
+				}
+			}
+		}
+		throw new IOException("too many redirects: " + url);
+	}
+
+	// Returns a validator usable in If-Range. Weak entity tags can't be used
+	// there, so the modification date is used instead of them.
+	private static String getValidator(final ResourceInfo info) {
+		if (info.eTag != null && !info.eTag.startsWith("W/")) return info.eTag;
+		return info.lastModified;
+	}
+
+	private static long parseLong(final String value) {
+		if (value == null) return -1;
+		try {
+			return Long.parseLong(value.trim());
+		} catch (final NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	// Parses the first byte position of "Content-Range: bytes 100-199/200".
+	private static long parseRangeStart(final HttpConnectionManager.Connection conn) {
+		final String range = conn.getHeaderField("Content-Range");
+		if (range == null || !range.startsWith("bytes ")) return -1;
+		final int dash = range.indexOf('-');
+		return dash < 0 ? -1 : parseLong(range.substring("bytes ".length(), dash));
+	}
+
+	// Parses the complete length of "Content-Range: bytes 100-199/200".
+	private static long parseRangeLength(final HttpConnectionManager.Connection conn) {
+		final String range = conn.getHeaderField("Content-Range");
+		final int slash = range == null ? -1 : range.indexOf('/');
+		return slash < 0 ? -1 : parseLong(range.substring(slash + 1));
 	}
-}
\ No newline at end of file
+}
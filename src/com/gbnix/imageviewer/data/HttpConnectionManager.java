@@ -0,0 +1,332 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.data;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.gbnix.imageviewer.common.Utils;
+import com.gbnix.imageviewer.util.ThreadPool.JobContext;
+
+// Opens the HTTP connections of the downloads.
+//
+// HttpURLConnection keeps the sockets of finished responses alive and reuses
+// them for the next requests to the same host, but only if the response is
+// read to its end and closed without disconnect(). A Connection does that:
+// it drains the small bodies nobody reads (redirects, errors), and only
+// drops the socket of a response abandoned in the middle.
+//
+// Besides, the number of connections open to a host at the same time is
+// capped, the permanent redirects are remembered so the next requests go
+// to their target directly, and the time to first byte and the throughput
+// of each host are measured.
+public class HttpConnectionManager {
+	private static final String TAG = "HttpConnectionManager";
+
+	private static final int MAX_CONNECTIONS_PER_HOST = 4;
+	private static final int MAX_REDIRECT_COUNT = 64;
+	// Bodies up to this length are read to keep their socket alive.
+	private static final int MAX_DRAIN_LENGTH = 16 * 1024;
+	private static final int CONNECT_TIMEOUT = 15 * 1000; // ms
+	private static final int READ_TIMEOUT = 20 * 1000; // ms
+	// How often a job waiting for a connection checks if it is cancelled.
+	private static final long CANCEL_POLL_INTERVAL = 100; // ms
+
+	private static final HashMap<String, Host> sHosts = new HashMap<String, Host>();
+
+	@SuppressWarnings("serial")
+	private static final LinkedHashMap<String, URL> sPermanentRedirects = new LinkedHashMap<String, URL>(16, 0.75f,
+			true) {
+		@Override
+		protected boolean removeEldestEntry(final Map.Entry<String, URL> eldest) {
+			return size() > MAX_REDIRECT_COUNT;
+		}
+	};
+
+	private HttpConnectionManager() {
+	}
+
+	// Returns the average time (in ms) between opening a connection to the
+	// given host and receiving the response headers, or -1 if unknown.
+	public static long getTimeToFirstByte(final String host) {
+		final Host h = findHost(host);
+		if (h == null) return -1;
+		synchronized (h) {
+			return h.mTimeToFirstByte;
+		}
+	}
+
+	// Returns the average throughput (in bytes per second) of the response
+	// bodies from the given host, or -1 if unknown.
+	public static long getThroughput(final String host) {
+		final Host h = findHost(host);
+		if (h == null) return -1;
+		synchronized (h) {
+			return h.mThroughput;
+		}
+	}
+
+	// Opens a connection to url, or to where it was permanently redirected
+	// to. Waits while too many connections to the host are open. The
+	// connection must be closed with Connection.close().
+	static Connection open(final JobContext jc, final URL url) throws IOException {
+		final URL location = resolve(url);
+		final Host host = getHost(location);
+		host.acquire(jc);
+		try {
+			return new Connection(host, (HttpURLConnection) location.openConnection());
+		} catch (final IOException e) {
+			host.release();
+			throw e;
+		} catch (final RuntimeException e) {
+			host.release();
+			throw e;
+		}
+	}
+
+	// Remembers that url is permanently redirected to location.
+	static void addPermanentRedirect(final URL url, final URL location) {
+		synchronized (sPermanentRedirects) {
+			sPermanentRedirects.put(url.toString(), location);
+		}
+	}
+
+	// Forgets where url was redirected to, e.g. because the target failed.
+	static void removePermanentRedirect(final URL url) {
+		synchronized (sPermanentRedirects) {
+			sPermanentRedirects.remove(url.toString());
+		}
+	}
+
+	// Returns where url leads to through the known permanent redirects.
+	static URL resolve(final URL url) {
+		URL location = url;
+		synchronized (sPermanentRedirects) {
+			// The count guards against a loop of redirects.
+			for (int i = 0; i < MAX_REDIRECT_COUNT; i++) {
+				final URL next = sPermanentRedirects.get(location.toString());
+				if (next == null) break;
+				location = next;
+			}
+		}
+		return location;
+	}
+
+	private static Host getHost(final URL url) {
+		final String key = getHostKey(url.getHost(), url.getPort() < 0 ? url.getDefaultPort() : url.getPort());
+		synchronized (sHosts) {
+			Host host = sHosts.get(key);
+			if (host == null) {
+				host = new Host();
+				sHosts.put(key, host);
+			}
+			return host;
+		}
+	}
+
+	private static Host findHost(final String host) {
+		synchronized (sHosts) {
+			for (final Map.Entry<String, Host> entry : sHosts.entrySet()) {
+				if (entry.getKey().startsWith(getHostKey(host, -1))) return entry.getValue();
+			}
+		}
+		return null;
+	}
+
+	private static String getHostKey(final String host, final int port) {
+		final String key = host.toLowerCase() + ":";
+		return port < 0 ? key : key + port;
+	}
+
+	private static class Host {
+		// Guarded by this.
+		private int mOpenCount;
+		private long mTimeToFirstByte = -1;
+		private long mThroughput = -1;
+
+		// Polls for the cancellation rather than setting a cancel listener:
+		// the listener of the job may be in use by its caller, and the Worker
+		// would call ours holding its own monitor.
+		synchronized void acquire(final JobContext jc) throws InterruptedIOException {
+			while (mOpenCount >= MAX_CONNECTIONS_PER_HOST) {
+				if (jc.isCancelled()) throw new InterruptedIOException();
+				try {
+					wait(CANCEL_POLL_INTERVAL);
+				} catch (final InterruptedException e) {
+					// ignore.
+				}
+			}
+			mOpenCount++;
+		}
+
+		synchronized void release() {
+			mOpenCount--;
+			notifyAll();
+		}
+
+		synchronized void recordTimeToFirstByte(final long time) {
+			mTimeToFirstByte = mTimeToFirstByte < 0 ? time : (mTimeToFirstByte * 3 + time) / 4;
+		}
+
+		synchronized void recordTransfer(final long bytes, final long elapsed) {
+			if (bytes <= 0 || elapsed <= 0) return;
+			final long throughput = bytes * 1000 / elapsed;
+			mThroughput = mThroughput < 0 ? throughput : (mThroughput * 3 + throughput) / 4;
+		}
+	}
+
+	// An HttpURLConnection holding one of the connections of its host.
+	static class Connection {
+		private final Host mHost;
+		private final HttpURLConnection mConnection;
+		private final long mOpenTime = System.currentTimeMillis();
+		private long mResponseTime;
+		private CountingInputStream mInput;
+		private boolean mClosed;
+		private volatile boolean mAborted;
+
+		private Connection(final Host host, final HttpURLConnection connection) {
+			mHost = host;
+			mConnection = connection;
+			// The redirects are followed by the caller, which tells us the
+			// permanent ones.
+			mConnection.setInstanceFollowRedirects(false);
+			// A stalled server must not hold a network slot forever.
+			mConnection.setConnectTimeout(CONNECT_TIMEOUT);
+			mConnection.setReadTimeout(READ_TIMEOUT);
+		}
+
+		void setRequestProperty(final String field, final String value) {
+			mConnection.setRequestProperty(field, value);
+		}
+
+		// Drops the socket, so a read blocked on it fails. May be called from
+		// any thread; the connection must still be closed.
+		void abort() {
+			mAborted = true;
+			mConnection.disconnect();
+		}
+
+		int getResponseCode() throws IOException {
+			final int respCode = mConnection.getResponseCode();
+			if (mResponseTime == 0) {
+				mResponseTime = System.currentTimeMillis();
+				mHost.recordTimeToFirstByte(mResponseTime - mOpenTime);
+			}
+			return respCode;
+		}
+
+		String getHeaderField(final String field) {
+			return mConnection.getHeaderField(field);
+		}
+
+		URL getURL() {
+			return mConnection.getURL();
+		}
+
+		InputStream getInputStream() throws IOException {
+			if (mInput == null) {
+				getResponseCode();
+				mInput = new CountingInputStream(mConnection.getInputStream());
+			}
+			return mInput;
+		}
+
+		// Closes the response and gives the connection back to its host. The
+		// socket is kept alive for the next request unless the body was left
+		// unread.
+		void close() {
+			if (mClosed) return;
+			mClosed = true;
+			try {
+				if (mInput != null) {
+					Utils.closeSilently(mInput);
+					mHost.recordTransfer(mInput.mCount, System.currentTimeMillis() - mResponseTime);
+				} else if (!mAborted) {
+					drain();
+				}
+			} finally {
+				mHost.release();
+			}
+		}
+
+		private void drain() {
+			InputStream input = null;
+			try {
+				input = mConnection.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST ? mConnection
+						.getErrorStream() : mConnection.getInputStream();
+				if (input == null) return;
+				final byte[] buffer = new byte[4096];
+				int length = 0;
+				int rc;
+				while ((rc = input.read(buffer)) >= 0) {
+					length += rc;
+					if (length > MAX_DRAIN_LENGTH) {
+						mConnection.disconnect();
+						return;
+					}
+				}
+			} catch (final IOException e) {
+				Log.w(TAG, "fail to drain " + mConnection.getURL(), e);
+				mConnection.disconnect();
+			} finally {
+				Utils.closeSilently(input);
+			}
+		}
+	}
+
+	private static class CountingInputStream extends FilterInputStream {
+		// Only read by the thread reading the stream.
+		long mCount;
+
+		CountingInputStream(final InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			final int b = super.read();
+			if (b >= 0) {
+				mCount++;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(final byte[] buffer, final int offset, final int count) throws IOException {
+			final int rc = super.read(buffer, offset, count);
+			if (rc > 0) {
+				mCount += rc;
+			}
+			return rc;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+			final long skipped = super.skip(n);
+			mCount += skipped;
+			return skipped;
+		}
+	}
+}
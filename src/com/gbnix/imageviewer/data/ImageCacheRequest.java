@@ -16,26 +16,38 @@
 
 package com.gbnix.imageviewer.data;
 
+import java.nio.ByteBuffer;
+
 import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 
 import com.gbnix.imageviewer.app.GalleryApp;
 import com.gbnix.imageviewer.common.BitmapUtils;
 import com.gbnix.imageviewer.data.BytesBufferPool.BytesBuffer;
+import com.gbnix.imageviewer.util.JobCoalescer;
 import com.gbnix.imageviewer.util.ThreadPool.Job;
 import com.gbnix.imageviewer.util.ThreadPool.JobContext;
 
 abstract class ImageCacheRequest implements Job<Bitmap> {
 	private static final String TAG = "ImageCacheRequest";
 
+	// The requests running now. All the callers get the same bitmap, which
+	// is also the one kept by the DecodedBitmapCache, so none of them may
+	// modify or recycle it.
+	private static final JobCoalescer<DecodedBitmapCache.Key, Bitmap> sRunningRequests =
+			new JobCoalescer<DecodedBitmapCache.Key, Bitmap>();
+
 	protected GalleryApp mApplication;
 	private final Path mPath;
+	private final long mVersion;
 	private final int mType;
 	private final int mTargetSize;
 
-	public ImageCacheRequest(final GalleryApp application, final Path path, final int type, final int targetSize) {
+	public ImageCacheRequest(final GalleryApp application, final Path path, final long version, final int type,
+			final int targetSize) {
 		mApplication = application;
 		mPath = path;
+		mVersion = version;
 		mType = type;
 		mTargetSize = targetSize;
 	}
@@ -47,30 +59,60 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
 		final String debugTag = mPath
 				+ ","
 				+ (mType == MediaItem.TYPE_THUMBNAIL ? "THUMB" : mType == MediaItem.TYPE_MICROTHUMBNAIL ? "MICROTHUMB"
-						: "?");
-		final ImageCacheService cacheService = mApplication.getImageCacheService();
+						: mType == MediaItem.TYPE_SCREENNAIL ? "SCREENNAIL" : "?");
+		// Pages re-entering the window usually ask again for the thumbnails
+		// they had a moment ago, so check the decoded ones first.
+		final DecodedBitmapCache bitmapCache = MediaItem.getDecodedBitmapCache();
+		final Bitmap cached = bitmapCache.get(mPath, mType, mVersion);
+		if (cached != null) return cached;
 
-		final BytesBuffer buffer = MediaItem.getBytesBufferPool().get();
-		try {
-			final boolean found = cacheService.getImageData(mPath, mType, buffer);
-			if (jc.isCancelled()) return null;
-			if (found) {
-				final BitmapFactory.Options options = new BitmapFactory.Options();
-				options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-				Bitmap bitmap;
-				if (mType == MediaItem.TYPE_MICROTHUMBNAIL) {
-					bitmap = MediaItem.getMicroThumbPool().decode(jc, buffer.data, buffer.offset, buffer.length,
-							options);
-				} else {
-					bitmap = MediaItem.getThumbPool().decode(jc, buffer.data, buffer.offset, buffer.length, options);
+		// The same thumbnail may be requested again while it is decoded, for
+		// example by the filmstrip and the page view, so the requests for it
+		// share one decode.
+		return sRunningRequests.run(jc, new DecodedBitmapCache.Key(mPath, mType, mVersion), new Job<Bitmap>() {
+			@Override
+			public Bitmap run(final JobContext jc) {
+				return decode(jc, debugTag, bitmapCache);
+			}
+		});
+	}
+
+	private Bitmap decode(final JobContext jc, final String debugTag, final DecodedBitmapCache bitmapCache) {
+		final ImageCacheService cacheService = getCacheService(mApplication, mType);
+
+		final BitmapPool pool = mType == MediaItem.TYPE_MICROTHUMBNAIL ? MediaItem.getMicroThumbPool() : MediaItem
+				.getThumbPool();
+
+		// Decode straight from the mapped cache file, so the cached image
+		// data is not copied to the heap.
+		final int generation = cacheService.getGeneration(mPath, mType);
+		final ByteBuffer data = cacheService.getImageBuffer(mPath, mType);
+		if (jc.isCancelled()) return null;
+		if (data != null) {
+			Bitmap bitmap = pool.decode(jc, data, newDecodeOptions());
+			boolean found = true;
+			if (cacheService.getGeneration(mPath, mType) != generation) {
+				// The region holding the data may have been written over
+				// while we decoded it, so decode a copy instead.
+				pool.recycle(bitmap);
+				bitmap = null;
+				final BytesBuffer buffer = MediaItem.getBytesBufferPool().get();
+				try {
+					found = cacheService.getImageData(mPath, mType, buffer);
+					if (found) {
+						bitmap = pool.decode(jc, buffer.data, buffer.offset, buffer.length, newDecodeOptions());
+					}
+				} finally {
+					MediaItem.getBytesBufferPool().recycle(buffer);
 				}
+			}
+			if (found) {
 				if (bitmap == null && !jc.isCancelled()) {
 					Log.w(TAG, "decode cached failed " + debugTag);
 				}
+				bitmapCache.put(mPath, mType, mVersion, bitmap);
 				return bitmap;
 			}
-		} finally {
-			MediaItem.getBytesBufferPool().recycle(buffer);
 		}
 		Bitmap bitmap = onDecodeOriginal(jc, mType);
 		if (jc.isCancelled()) return null;
@@ -91,6 +133,19 @@ abstract class ImageCacheRequest implements Job<Bitmap> {
 		if (jc.isCancelled()) return null;
 
 		cacheService.putImageData(mPath, mType, array);
+		bitmapCache.put(mPath, mType, mVersion, bitmap);
 		return bitmap;
 	}
+
+	private static BitmapFactory.Options newDecodeOptions() {
+		final BitmapFactory.Options options = new BitmapFactory.Options();
+		options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+		return options;
+	}
+
+	// Returns the cache service holding the images of the given type.
+	static ImageCacheService getCacheService(final GalleryApp application, final int type) {
+		return type == MediaItem.TYPE_SCREENNAIL ? application.getScreenNailCacheService() : application
+				.getImageCacheService();
+	}
 }
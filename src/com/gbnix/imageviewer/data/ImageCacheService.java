@@ -16,32 +16,88 @@
 
 package com.gbnix.imageviewer.data;
 
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.content.Context;
+import android.os.Process;
+import android.os.SystemClock;
 
-import com.gbnix.imageviewer.common.BlobCache;
 import com.gbnix.imageviewer.common.BlobCache.LookupRequest;
+import com.gbnix.imageviewer.common.BlobCacheStats;
+import com.gbnix.imageviewer.common.Histogram;
+import com.gbnix.imageviewer.common.ShardedBlobCache;
 import com.gbnix.imageviewer.common.Utils;
 import com.gbnix.imageviewer.data.BytesBufferPool.BytesBuffer;
 import com.gbnix.imageviewer.util.CacheManager;
 import com.gbnix.imageviewer.util.GalleryUtils;
+import com.gbnix.imageviewer.util.PriorityThreadFactory;
 
 public class ImageCacheService {
-	@SuppressWarnings("unused")
 	private static final String TAG = "ImageCacheService";
 
 	private static final String IMAGE_CACHE_FILE = "imgcache";
-	private static final int IMAGE_CACHE_MAX_ENTRIES = 5000;
-	private static final int IMAGE_CACHE_MAX_BYTES = 200 * 1024 * 1024;
-	private static final int IMAGE_CACHE_VERSION = 4;
+	// The cache is split into IMAGE_CACHE_SHARDS shards, each of which is a
+	// ring of IMAGE_CACHE_REGIONS generations, and a flip only drops the
+	// oldest generation of one shard. The limits below are per generation of
+	// a shard, so the cache as a whole has the same index size and 400M of
+	// data as the original two-region layout.
+	private static final int IMAGE_CACHE_SHARDS = 4;
+	private static final int IMAGE_CACHE_REGIONS = 4;
+	private static final int IMAGE_CACHE_MAX_ENTRIES = 625;
+	private static final int IMAGE_CACHE_MAX_BYTES = 25 * 1024 * 1024;
+	private static final int IMAGE_CACHE_VERSION = 5;
 
-	private final BlobCache mCache;
+	// Limits of the write-behind queue. New entries are dropped when the
+	// queue is full: the cache is only an optimization, and the decode
+	// workers must never wait for the disk.
+	private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+	private static final int MAX_WRITE_BATCH = 16;
+
+	// Cache hits about to be evicted are copied into the newest generation by
+	// the writer thread, at most PROMOTION_BYTES every PROMOTION_INTERVAL ms,
+	// so promotions cannot hog the disk.
+	private static final int PROMOTION_BYTES = 512 * 1024;
+	private static final long PROMOTION_INTERVAL = 1000;
+
+	private final ShardedBlobCache mCache;
+
+	// Entries which have been put but not written to mCache yet, in the order
+	// they were put. Each is the key bytes and the image data, which are
+	// written to mCache one after another. Guarded by itself.
+	private final LinkedHashMap<Long, byte[][]> mPendingWrites = new LinkedHashMap<Long, byte[][]>();
+	private int mPendingBytes;
+	// The largest key and data mCache takes, 0 if there is no cache.
+	private final int mMaxBlobLength;
+
+	private final Stats mStats = new Stats();
 
 	public ImageCacheService(final Context context) {
-		mCache = CacheManager.getCache(context, IMAGE_CACHE_FILE, IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES,
-				IMAGE_CACHE_VERSION);
+		this(context, IMAGE_CACHE_FILE, IMAGE_CACHE_MAX_ENTRIES, IMAGE_CACHE_MAX_BYTES, IMAGE_CACHE_VERSION,
+				IMAGE_CACHE_REGIONS, IMAGE_CACHE_SHARDS);
+	}
+
+	/**
+	 * Creates a service backed by its own cache files. The limits are per
+	 * generation of a shard, see {@link CacheManager#getShardedCache}.
+	 */
+	public ImageCacheService(final Context context, final String filename, final int maxEntries,
+			final long maxBytes, final int version, final int regionCount, final int shardCount) {
+		mCache = CacheManager.getShardedCache(context, filename, maxEntries, maxBytes, version, regionCount,
+				shardCount);
+		mMaxBlobLength = mCache != null ? mCache.getMaxBlobLength() : 0;
+		if (mCache != null) {
+			final Thread writer = new PriorityThreadFactory("image-cache-writer",
+					Process.THREAD_PRIORITY_BACKGROUND).newThread(new CacheWriter());
+			writer.setDaemon(true);
+			writer.start();
+		}
 	}
 
 	/**
@@ -56,15 +112,30 @@ public class ImageCacheService {
 	 * @return true if the image data is found; false if not found.
 	 */
 	public boolean getImageData(final Path path, final int type, final BytesBuffer buffer) {
-		final byte[] key = makeKey(path, type);
-		final long cacheKey = Utils.crc64Long(key);
+		final long startTime = System.nanoTime();
+		final boolean found = getImageDataInternal(path, type, buffer);
+		mStats.recordLookup(found, startTime);
+		return found;
+	}
+
+	private boolean getImageDataInternal(final Path path, final int type, final BytesBuffer buffer) {
+		final CacheKey cacheKey = getCacheKey(path, type);
+		final byte[] key = cacheKey.mBytes;
+		final byte[][] pending = getPendingWrite(cacheKey.mHash);
+		if (pending != null && Arrays.equals(key, pending[0])) {
+			buffer.data = pending[1];
+			buffer.offset = 0;
+			buffer.length = pending[1].length;
+			return true;
+		}
 		try {
 			final LookupRequest request = new LookupRequest();
-			request.key = cacheKey;
+			request.key = cacheKey.mHash;
 			request.buffer = buffer.data;
-			synchronized (mCache) {
-				if (!mCache.lookup(request)) return false;
-			}
+			// BlobCache handles concurrent lookups itself, so the decode
+			// workers don't need to serialize on the cache here.
+			if (!mCache.lookup(request)) return false;
+			schedulePromotions();
 			if (isSameKey(key, request.buffer)) {
 				buffer.data = request.buffer;
 				buffer.offset = key.length;
@@ -77,19 +148,187 @@ public class ImageCacheService {
 		return false;
 	}
 
+	/**
+	 * Gets the cached image data for the given <code>path</code> and
+	 * <code>type</code> without copying it.
+	 * 
+	 * The returned buffer is a read-only view of the memory-mapped cache file
+	 * which holds the image data between its position and its limit. It
+	 * should be consumed right away: its content is only guaranteed until the
+	 * cache region it lives in is reused. Read {@link #getGeneration} before
+	 * the lookup, and check it has not changed once the data is consumed.
+	 * 
+	 * @return the image data, or null if it is not found.
+	 */
+	public ByteBuffer getImageBuffer(final Path path, final int type) {
+		final long startTime = System.nanoTime();
+		final ByteBuffer buffer = getImageBufferInternal(path, type);
+		mStats.recordLookup(buffer != null, startTime);
+		return buffer;
+	}
+
+	private ByteBuffer getImageBufferInternal(final Path path, final int type) {
+		final CacheKey cacheKey = getCacheKey(path, type);
+		final byte[] key = cacheKey.mBytes;
+		final byte[][] pending = getPendingWrite(cacheKey.mHash);
+		if (pending != null && Arrays.equals(key, pending[0])) {
+			return ByteBuffer.wrap(pending[1]).asReadOnlyBuffer();
+		}
+		try {
+			final ByteBuffer blob = mCache.lookupMapped(cacheKey.mHash);
+			if (blob == null) return null;
+			schedulePromotions();
+			if (!isSameKey(key, blob)) return null;
+			blob.position(key.length);
+			return blob.slice();
+		} catch (final IOException ex) {
+			// ignore.
+		}
+		return null;
+	}
+
+	/**
+	 * Gets a number which changes each time the cache region holding the
+	 * image data for the given <code>path</code> and <code>type</code> may
+	 * be reused.
+	 */
+	public int getGeneration(final Path path, final int type) {
+		return mCache.getGeneration(getCacheKey(path, type).mHash);
+	}
+
+	/**
+	 * Puts the image data for the given <code>path</code> and
+	 * <code>type</code> into the cache.
+	 * 
+	 * The data is written to the disk later by a background thread, but it
+	 * can be looked up right away. If too much data is already waiting to be
+	 * written, or if it is larger than the cache can hold, the new entry is
+	 * dropped.
+	 */
 	public void putImageData(final Path path, final int type, final byte[] value) {
-		final byte[] key = makeKey(path, type);
-		final long cacheKey = Utils.crc64Long(key);
-		final ByteBuffer buffer = ByteBuffer.allocate(key.length + value.length);
-		buffer.put(key);
-		buffer.put(value);
-		synchronized (mCache) {
-			try {
-				mCache.insert(cacheKey, buffer.array());
-			} catch (final IOException ex) {
-				// ignore.
+		final CacheKey cacheKey = getCacheKey(path, type);
+		if (cacheKey.mBytes.length + value.length > mMaxBlobLength) {
+			// The writer thread would fail to write it.
+			Log.w(TAG, "image data too large for the cache: " + value.length);
+			mStats.mDroppedWrites.incrementAndGet();
+			return;
+		}
+		// The key and the data are written separately, so the data is not
+		// copied.
+		final byte[][] blob = new byte[][] { cacheKey.mBytes, value };
+		synchronized (mPendingWrites) {
+			final long lockTime = System.nanoTime();
+			if (mPendingBytes + value.length > MAX_PENDING_BYTES) {
+				mStats.mDroppedWrites.incrementAndGet();
+			} else {
+				final byte[][] old = mPendingWrites.put(cacheKey.mHash, blob);
+				mPendingBytes += value.length - (old == null ? 0 : old[1].length);
+				mPendingWrites.notifyAll();
+				mStats.mQueuedWrites.incrementAndGet();
+			}
+			mStats.mMonitorTime.addNanos(System.nanoTime() - lockTime);
+		}
+	}
+
+	/**
+	 * Returns true if image data for the given <code>path</code> and
+	 * <code>type</code> is in the cache.
+	 */
+	public boolean hasImageData(final Path path, final int type) {
+		return getImageBufferInternal(path, type) != null;
+	}
+
+	/**
+	 * Gets the metadata stored for the given <code>path</code>.
+	 * 
+	 * @return the metadata, or null if it is not found or not readable.
+	 */
+	public ImageMetadata getImageMetadata(final Path path) {
+		final ByteBuffer data = getImageBuffer(path, MediaItem.TYPE_METADATA);
+		if (data == null) return null;
+		final byte[] bytes = new byte[data.remaining()];
+		data.get(bytes);
+		return ImageMetadata.fromBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Puts the metadata for the given <code>path</code> into the cache, like
+	 * {@link #putImageData}.
+	 */
+	public void putImageMetadata(final Path path, final ImageMetadata metadata) {
+		putImageData(path, MediaItem.TYPE_METADATA, metadata.toBytes());
+	}
+
+	/**
+	 * Returns the statistics of this service. The returned object is updated
+	 * as the service is used.
+	 */
+	public Stats getStats() {
+		return mStats;
+	}
+
+	/**
+	 * Returns the statistics of the underlying cache files.
+	 */
+	public BlobCacheStats getCacheStats() {
+		return mCache.getStats();
+	}
+
+	/**
+	 * Saves the statistics of this service and of the cache files to a text
+	 * file.
+	 */
+	public void dumpStatsToFile(final String filename) {
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new FileOutputStream(filename));
+			out.writeBytes(mStats.toString());
+			out.writeBytes(mCache.getStats().toString());
+		} catch (final IOException ex) {
+			Log.w(TAG, "Failed to dump to file", ex);
+		} finally {
+			Utils.closeSilently(out);
+		}
+	}
+
+	// Wakes up the writer thread if the last lookup left something to
+	// promote.
+	private void schedulePromotions() {
+		if (!mCache.hasPendingPromotions()) return;
+		synchronized (mPendingWrites) {
+			mPendingWrites.notifyAll();
+		}
+	}
+
+	private byte[][] getPendingWrite(final long cacheKey) {
+		synchronized (mPendingWrites) {
+			// Most of the time nothing is waiting to be written: don't even
+			// box the key then.
+			if (mPendingWrites.isEmpty()) return null;
+			final long lockTime = System.nanoTime();
+			final byte[][] pending = mPendingWrites.get(cacheKey);
+			if (pending != null) {
+				mStats.mPendingHits.incrementAndGet();
 			}
+			mStats.mMonitorTime.addNanos(System.nanoTime() - lockTime);
+			return pending;
+		}
+	}
+
+	// Returns the key of the given path and type. It is computed only once
+	// for each path, because Path.toString() takes the global Path lock.
+	private static CacheKey getCacheKey(final Path path, final int type) {
+		final CacheKey[] keys = path.mCacheKeys;
+		if (keys != null && type < keys.length && keys[type] != null) return keys[type];
+		final CacheKey key = new CacheKey(makeKey(path, type));
+		synchronized (path) {
+			final CacheKey[] old = path.mCacheKeys;
+			final CacheKey[] newKeys = old == null ? new CacheKey[type + 1] : Arrays.copyOf(old,
+					Math.max(old.length, type + 1));
+			newKeys[type] = key;
+			path.mCacheKeys = newKeys;
 		}
+		return key;
 	}
 
 	private static boolean isSameKey(final byte[] key, final byte[] buffer) {
@@ -101,7 +340,177 @@ public class ImageCacheService {
 		return true;
 	}
 
+	private static boolean isSameKey(final byte[] key, final ByteBuffer buffer) {
+		final int n = key.length;
+		if (buffer.remaining() < n) return false;
+		final int start = buffer.position();
+		for (int i = 0; i < n; ++i) {
+			if (key[i] != buffer.get(start + i)) return false;
+		}
+		return true;
+	}
+
 	private static byte[] makeKey(final Path path, final int type) {
 		return GalleryUtils.getBytes(path.toString() + "+" + type);
 	}
+
+	// Drains mPendingWrites into mCache, up to MAX_WRITE_BATCH entries per
+	// BlobCache write, and promotes the entries recorded by mCache lookups.
+	private class CacheWriter implements Runnable {
+		private final long[] mKeys = new long[MAX_WRITE_BATCH];
+		private final byte[][][] mBlobs = new byte[MAX_WRITE_BATCH][][];
+		private long mNextPromotionTime;
+
+		@Override
+		public void run() {
+			while (true) {
+				final int count = takePendingWrites();
+				if (count > 0) {
+					write(count);
+				}
+				if (SystemClock.uptimeMillis() >= mNextPromotionTime && mCache.hasPendingPromotions()) {
+					try {
+						mCache.promotePending(PROMOTION_BYTES);
+					} catch (final IOException ex) {
+						Log.w(TAG, "cannot promote image cache entries", ex);
+					} catch (final RuntimeException ex) {
+						Log.e(TAG, "cannot promote image cache entries", ex);
+					}
+					mNextPromotionTime = SystemClock.uptimeMillis() + PROMOTION_INTERVAL;
+				}
+			}
+		}
+
+		// Waits until there is something to write or a promotion is due, and
+		// copies up to MAX_WRITE_BATCH pending writes into mKeys and mBlobs.
+		private int takePendingWrites() {
+			int count = 0;
+			synchronized (mPendingWrites) {
+				while (mPendingWrites.isEmpty()) {
+					if (!mCache.hasPendingPromotions()) {
+						Utils.waitWithoutInterrupt(mPendingWrites);
+						continue;
+					}
+					final long delay = mNextPromotionTime - SystemClock.uptimeMillis();
+					if (delay <= 0) return 0;
+					try {
+						mPendingWrites.wait(delay);
+					} catch (final InterruptedException e) {
+						Log.w(TAG, "unexpected interrupt", e);
+					}
+				}
+				for (final Map.Entry<Long, byte[][]> entry : mPendingWrites.entrySet()) {
+					mKeys[count] = entry.getKey();
+					mBlobs[count] = entry.getValue();
+					if (++count == MAX_WRITE_BATCH) break;
+				}
+			}
+			return count;
+		}
+
+		// The entries are taken off the queue even if they cannot be written:
+		// they would fail again, and this thread must keep running.
+		private void write(final int count) {
+			final long startTime = System.nanoTime();
+			try {
+				mCache.insert(mKeys, mBlobs, count);
+			} catch (final IOException ex) {
+				Log.w(TAG, "cannot write to the image cache", ex);
+			} catch (final RuntimeException ex) {
+				Log.e(TAG, "cannot write to the image cache", ex);
+			}
+			mStats.mWriteTime.addNanos(System.nanoTime() - startTime);
+
+			synchronized (mPendingWrites) {
+				for (int i = 0; i < count; ++i) {
+					// Keep the entry if it has been put again meanwhile.
+					if (mPendingWrites.get(mKeys[i]) != mBlobs[i]) continue;
+					mPendingWrites.remove(mKeys[i]);
+					mPendingBytes -= mBlobs[i][1].length;
+				}
+			}
+			Arrays.fill(mBlobs, null);
+		}
+	}
+
+	// The key of an image in the cache: the bytes stored in front of the image
+	// data, and their hash which is the key in mCache.
+	static class CacheKey {
+		final byte[] mBytes;
+		final long mHash;
+
+		CacheKey(final byte[] bytes) {
+			mBytes = bytes;
+			mHash = Utils.crc64Long(bytes);
+		}
+	}
+
+	/**
+	 * Counters and latency histograms of an {@link ImageCacheService}. The
+	 * statistics of the cache files themselves are in {@link BlobCacheStats}.
+	 */
+	public static class Stats {
+		private final AtomicLong mHits = new AtomicLong();
+		private final AtomicLong mMisses = new AtomicLong();
+		// Hits on entries still waiting to be written.
+		private final AtomicLong mPendingHits = new AtomicLong();
+		private final AtomicLong mQueuedWrites = new AtomicLong();
+		private final AtomicLong mDroppedWrites = new AtomicLong();
+		private final Histogram mLookupTime = new Histogram();
+		// Time of each batch written by the writer thread.
+		private final Histogram mWriteTime = new Histogram();
+		// How long the write-behind queue monitor is held by the callers.
+		private final Histogram mMonitorTime = new Histogram();
+
+		public long getHits() {
+			return mHits.get();
+		}
+
+		public long getMisses() {
+			return mMisses.get();
+		}
+
+		public long getPendingHits() {
+			return mPendingHits.get();
+		}
+
+		public long getQueuedWrites() {
+			return mQueuedWrites.get();
+		}
+
+		public long getDroppedWrites() {
+			return mDroppedWrites.get();
+		}
+
+		public Histogram getLookupTime() {
+			return mLookupTime;
+		}
+
+		public Histogram getWriteTime() {
+			return mWriteTime;
+		}
+
+		public Histogram getMonitorTime() {
+			return mMonitorTime;
+		}
+
+		private void recordLookup(final boolean hit, final long startTime) {
+			(hit ? mHits : mMisses).incrementAndGet();
+			mLookupTime.addNanos(System.nanoTime() - startTime);
+		}
+
+		@Override
+		public String toString() {
+			final StringBuilder sb = new StringBuilder();
+			sb.append("image hits: ").append(getHits()).append('\n');
+			sb.append("image misses: ").append(getMisses()).append('\n');
+			sb.append("pending hits: ").append(getPendingHits()).append('\n');
+			sb.append("queued writes: ").append(getQueuedWrites()).append('\n');
+			sb.append("dropped writes: ").append(getDroppedWrites()).append('\n');
+			sb.append("image lookup time: ").append(mLookupTime).append('\n');
+			sb.append("batch write time: ").append(mWriteTime).append('\n');
+			sb.append("monitor time: ").append(mMonitorTime).append('\n');
+			return sb.toString();
+		}
+	}
 }
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.data;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import com.gbnix.imageviewer.common.Utils;
+
+// What we know about an image without opening it: the size of the original
+// image, its EXIF rotation and MIME type, and the number of tile levels
+// needed to show it. It is stored in the image cache next to the thumbnails
+// (as MediaItem.TYPE_METADATA), so it is available before the source is
+// opened or downloaded again.
+//
+// The fingerprint identifies the version of the source the record was made
+// from. It may be null if the source has no cheap way to tell its version.
+public class ImageMetadata {
+	private static final String TAG = "ImageMetadata";
+
+	// Incremented whenever the record layout changes. Records of another
+	// version are ignored.
+	private static final int VERSION = 1;
+
+	public final int width;
+	public final int height;
+	public final int rotation;
+	public final String mimeType;
+	public final String fingerprint;
+	public final int levelCount;
+
+	public ImageMetadata(final int width, final int height, final int rotation, final String mimeType,
+			final String fingerprint) {
+		this.width = width;
+		this.height = height;
+		this.rotation = rotation;
+		this.mimeType = mimeType;
+		this.fingerprint = fingerprint;
+		levelCount = calculateLevelCount(width, height);
+	}
+
+	private ImageMetadata(final int width, final int height, final int rotation, final String mimeType,
+			final String fingerprint, final int levelCount) {
+		this.width = width;
+		this.height = height;
+		this.rotation = rotation;
+		this.mimeType = mimeType;
+		this.fingerprint = fingerprint;
+		this.levelCount = levelCount;
+	}
+
+	public byte[] toBytes() {
+		final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		final DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeByte(VERSION);
+			out.writeInt(width);
+			out.writeInt(height);
+			out.writeShort(rotation);
+			out.writeShort(levelCount);
+			writeString(out, mimeType);
+			writeString(out, fingerprint);
+			out.flush();
+		} catch (final IOException e) {
+			// ByteArrayOutputStream doesn't throw.
+			throw new AssertionError(e);
+		}
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public String toString() {
+		return "ImageMetadata(" + width + "x" + height + ", rotation=" + rotation + ", " + mimeType + ", levels="
+				+ levelCount + ", fingerprint=" + fingerprint + ")";
+	}
+
+	// Returns the record stored in the given bytes, or null if they don't
+	// hold a valid record of the current version.
+	public static ImageMetadata fromBytes(final byte[] data, final int offset, final int length) {
+		final DataInputStream in = new DataInputStream(new ByteArrayInputStream(data, offset, length));
+		try {
+			if (in.readByte() != VERSION) return null;
+			final int width = in.readInt();
+			final int height = in.readInt();
+			final int rotation = in.readShort();
+			final int levelCount = in.readShort();
+			final String mimeType = readString(in);
+			final String fingerprint = readString(in);
+			if (width <= 0 || height <= 0) return null;
+			return new ImageMetadata(width, height, rotation, mimeType, fingerprint, levelCount);
+		} catch (final IOException e) {
+			Log.w(TAG, "invalid metadata", e);
+			return null;
+		}
+	}
+
+	// Returns the number of tile levels of an image of the given size, as
+	// TileImageViewAdapter computes it when the screen nail is the thumbnail.
+	private static int calculateLevelCount(final int width, final int height) {
+		final float scale = Math.min(1f, (float) MediaItem.THUMBNAIL_TARGET_SIZE / Math.max(width, height));
+		final int screenNailWidth = Math.max(1, Math.round(width * scale));
+		return Math.max(0, Utils.ceilLog2((float) width / screenNailWidth));
+	}
+
+	private static String readString(final DataInputStream in) throws IOException {
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	private static void writeString(final DataOutputStream out, final String s) throws IOException {
+		out.writeBoolean(s != null);
+		if (s != null) {
+			out.writeUTF(s);
+		}
+	}
+}
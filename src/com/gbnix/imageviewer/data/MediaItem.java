@@ -28,6 +28,11 @@ public abstract class MediaItem extends MediaObject {
 	// not be changed without resetting the cache.
 	public static final int TYPE_THUMBNAIL = 1;
 	public static final int TYPE_MICROTHUMBNAIL = 2;
+	// The ImageMetadata of the item, stored next to its thumbnails.
+	public static final int TYPE_METADATA = 3;
+	// An image at the resolution of the screen. It is kept in its own cache,
+	// see GalleryApp.getScreenNailCacheService().
+	public static final int TYPE_SCREENNAIL = 4;
 
 	public static final int THUMBNAIL_TARGET_SIZE = 640;
 	public static final int MICROTHUMBNAIL_TARGET_SIZE = 200;
@@ -39,12 +44,19 @@ public abstract class MediaItem extends MediaObject {
 
 	public static final String MIME_TYPE_JPEG = "image/jpeg";
 
+	// The longer side of TYPE_SCREENNAIL images: the longer side of the
+	// screen, set when the application starts.
+	private static int sScreenNailTargetSize = THUMBNAIL_TARGET_SIZE;
+
 	private static final int BYTESBUFFE_POOL_SIZE = 4;
 	private static final int BYTESBUFFER_SIZE = 200 * 1024;
 
 	private static final BitmapPool sMicroThumbPool = new BitmapPool(MICROTHUMBNAIL_TARGET_SIZE,
 			MICROTHUMBNAIL_TARGET_SIZE, 16);
 	private static final BitmapPool sThumbPool = new BitmapPool(4);
+	// The decoded thumbnails are kept in 1/8 of the heap at most.
+	private static final DecodedBitmapCache sDecodedBitmapCache = new DecodedBitmapCache(Runtime.getRuntime()
+			.maxMemory() / 8);
 	private static final BytesBufferPool sMicroThumbBufferPool = new BytesBufferPool(BYTESBUFFE_POOL_SIZE,
 			BYTESBUFFER_SIZE);
 
@@ -101,6 +113,15 @@ public abstract class MediaItem extends MediaObject {
 	// Returns 0, 0 if the information is not available.
 	public abstract int getWidth();
 
+	// Returns true if requestImage(type) can be served from the image cache,
+	// without opening the source. This may do I/O, so don't call it on the UI
+	// thread.
+	public boolean isImageCached(final int type) {
+		return false;
+	}
+
+	// The bitmap given by the job may be shared with other callers and with
+	// the DecodedBitmapCache, so it must not be modified or recycled.
 	public abstract Job<Bitmap> requestImage(int type);
 
 	public abstract Job<BitmapRegionDecoder> requestLargeImage();
@@ -109,6 +130,10 @@ public abstract class MediaItem extends MediaObject {
 		return sMicroThumbBufferPool;
 	}
 
+	public static DecodedBitmapCache getDecodedBitmapCache() {
+		return sDecodedBitmapCache;
+	}
+
 	public static BitmapPool getMicroThumbPool() {
 		return sMicroThumbPool;
 	}
@@ -119,11 +144,23 @@ public abstract class MediaItem extends MediaObject {
 				return THUMBNAIL_TARGET_SIZE;
 			case TYPE_MICROTHUMBNAIL:
 				return MICROTHUMBNAIL_TARGET_SIZE;
+			case TYPE_SCREENNAIL:
+				return sScreenNailTargetSize;
 			default:
 				throw new RuntimeException("should only request thumb/microthumb from cache");
 		}
 	}
 
+	// Returns true if TYPE_SCREENNAIL images are sharper than thumbnails on
+	// this screen.
+	public static boolean hasScreenNailType() {
+		return sScreenNailTargetSize > THUMBNAIL_TARGET_SIZE;
+	}
+
+	public static void setScreenNailTargetSize(final int size) {
+		sScreenNailTargetSize = size;
+	}
+
 	public static BitmapPool getThumbPool() {
 		return sThumbPool;
 	}
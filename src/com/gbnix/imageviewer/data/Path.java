@@ -30,6 +30,9 @@ public class Path {
 	private final String mSegment;
 	private WeakReference<MediaObject> mObject;
 	private IdentityCache<String, Path> mChildren;
+	// The keys of this path in the image cache, by type. They are set by
+	// ImageCacheService.
+	volatile ImageCacheService.CacheKey[] mCacheKeys;
 
 	private Path(final Path parent, final String segment) {
 		mParent = parent;
@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+
+import com.gbnix.imageviewer.common.Utils;
+import com.gbnix.imageviewer.util.Future;
+import com.gbnix.imageviewer.util.ThreadPool;
+import com.gbnix.imageviewer.util.ThreadPool.Job;
+import com.gbnix.imageviewer.util.ThreadPool.JobContext;
+
+// Downloads a resource as several byte ranges at the same time. A single
+// stream underuses the bandwidth of links with a high latency, which shows
+// on images of several megabytes.
+//
+// The first segment is read from the response which told us the length of
+// the resource and that it supports ranges. The other segments are fetched
+// with Range requests, by helper jobs on the ThreadPool and by the caller
+// once it is done with the first one. Each of them holds the MODE_NETWORK
+// resource while it transfers a segment, so the number of parallel streams
+// is bounded by the network limit of the ThreadPool. A segment is only taken
+// by a job holding the resource, so the caller never waits for a helper that
+// is still queued: it takes the remaining segments itself.
+//
+// A read blocked on a stalled connection would keep its slot and hold up the
+// whole download. The reads time out (see HttpConnectionManager), and once a
+// segment fails the connections of the others are dropped, so they fail at
+// once rather than at their timeout.
+class SegmentedDownload {
+	private static final String TAG = "SegmentedDownload";
+
+	private final URL mUrl;
+	private final DownloadUtils.ResourceInfo mInfo;
+	private final FileChannel mChannel;
+	private final Segment[] mSegments;
+
+	// Guarded by this.
+	private int mNextSegment = 1;
+	private int mRunningCount;
+	// The connections the segments are being read from.
+	private final ArrayList<HttpConnectionManager.Connection> mConnections =
+			new ArrayList<HttpConnectionManager.Connection>();
+
+	private volatile boolean mFailed;
+
+	private SegmentedDownload(final HttpConnectionManager.Connection conn, final DownloadUtils.ResourceInfo info,
+			final FileChannel channel, final int segmentCount) {
+		// The ranges are asked from where the redirects led.
+		mUrl = conn.getURL();
+		mConnections.add(conn);
+		mInfo = info;
+		mChannel = channel;
+		mSegments = new Segment[segmentCount];
+		final long size = (info.length + segmentCount - 1) / segmentCount;
+		for (int i = 0; i < segmentCount; i++) {
+			mSegments[i] = new Segment(i * size, Math.min(info.length, (i + 1) * size));
+		}
+	}
+
+	// Downloads the resource described by info into file, reading the first
+	// segment from input, the body of conn. Returns true if the whole
+	// resource is downloaded. Otherwise the file is truncated to the bytes
+	// downloaded from its start, so the download can be resumed from there.
+	static boolean download(final JobContext jc, final ThreadPool pool, final HttpConnectionManager.Connection conn,
+			final InputStream input, final File file, final DownloadUtils.ResourceInfo info, final int segmentCount)
+			throws IOException {
+		final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(0);
+			final SegmentedDownload download = new SegmentedDownload(conn, info, raf.getChannel(), segmentCount);
+			final boolean finished = download.run(jc, pool, input);
+			if (!finished) {
+				raf.setLength(download.getDownloadedPrefix());
+			}
+			return finished;
+		} finally {
+			Utils.closeSilently(raf);
+		}
+	}
+
+	private boolean run(final JobContext jc, final ThreadPool pool, final InputStream input) {
+		final ArrayList<Future<Void>> helpers = new ArrayList<Future<Void>>();
+		for (int i = 1; i < mSegments.length; i++) {
+			helpers.add(pool.submit(new Job<Void>() {
+				@Override
+				public Void run(final JobContext jc) {
+					work(jc);
+					return null;
+				}
+			}));
+		}
+		try {
+			synchronized (this) {
+				mRunningCount++;
+			}
+			try {
+				transfer(jc, input, mSegments[0]);
+			} catch (final Throwable t) {
+				Log.w(TAG, "fail to download " + mUrl, t);
+				abort();
+			} finally {
+				synchronized (this) {
+					// The connection itself is closed by the caller.
+					mConnections.clear();
+				}
+				Utils.closeSilently(input);
+				segmentDone();
+			}
+			work(jc);
+		} finally {
+			// Only stop the helpers if the download is given up: a helper
+			// may still be transferring the last segments. Those which
+			// start later find no segment left and return.
+			if (jc.isCancelled()) {
+				abort();
+			}
+			if (mFailed) {
+				for (final Future<Void> helper : helpers) {
+					helper.cancel();
+				}
+			}
+			waitForRunningSegments();
+		}
+		for (final Segment segment : mSegments) {
+			if (segment.mDone != segment.mEnd - segment.mStart) return false;
+		}
+		return true;
+	}
+
+	// Takes and downloads segments until there are none left.
+	private void work(final JobContext jc) {
+		while (true) {
+			if (!jc.setMode(ThreadPool.MODE_NETWORK)) return;
+			final Segment segment;
+			synchronized (this) {
+				if (mFailed || jc.isCancelled() || mNextSegment == mSegments.length) return;
+				segment = mSegments[mNextSegment++];
+				mRunningCount++;
+			}
+			HttpConnectionManager.Connection conn = null;
+			try {
+				conn = HttpConnectionManager.open(jc, mUrl);
+				synchronized (this) {
+					if (mFailed) throw new InterruptedIOException();
+					mConnections.add(conn);
+				}
+				conn.setRequestProperty("Accept-Encoding", "identity");
+				conn.setRequestProperty("Range", "bytes=" + segment.mStart + "-" + (segment.mEnd - 1));
+				conn.setRequestProperty("If-Range", mInfo.validator);
+				final int respCode = conn.getResponseCode();
+				final String range = "bytes " + segment.mStart + "-" + (segment.mEnd - 1) + "/" + mInfo.length;
+				if (respCode != HttpURLConnection.HTTP_PARTIAL || !range.equals(conn.getHeaderField("Content-Range"))) {
+					// The resource has changed, or the range isn't supported
+					// after all.
+					throw new IOException("unexpected response " + respCode + " for " + range);
+				}
+				transfer(jc, conn.getInputStream(), segment);
+			} catch (final Throwable t) {
+				Log.w(TAG, "fail to download " + mUrl, t);
+				abort();
+			} finally {
+				if (conn != null) {
+					synchronized (this) {
+						mConnections.remove(conn);
+					}
+					conn.close();
+				}
+				segmentDone();
+			}
+		}
+	}
+
+	// Copies the bytes of the segment from input to their position in the
+	// file.
+	private void transfer(final JobContext jc, final InputStream input, final Segment segment) throws IOException {
+		final ReadableByteChannel in = Channels.newChannel(input);
+		final ByteBuffer buffer = DownloadUtils.getTransferBuffer();
+		final long length = segment.mEnd - segment.mStart;
+		while (segment.mDone < length) {
+			if (mFailed || jc.isCancelled()) throw new InterruptedIOException();
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), length - segment.mDone));
+			final int rc = DownloadUtils.fill(in, buffer);
+			if (rc == 0) throw new IOException("unexpected end of stream");
+			if (!jc.throttle(rc)) throw new InterruptedIOException();
+			buffer.flip();
+			long position = segment.mStart + segment.mDone;
+			while (buffer.hasRemaining()) {
+				position += mChannel.write(buffer, position);
+			}
+			segment.mDone += rc;
+		}
+	}
+
+	// Gives up the download. The connections are dropped, so the segments
+	// blocked in a read fail at once.
+	private void abort() {
+		final ArrayList<HttpConnectionManager.Connection> connections;
+		synchronized (this) {
+			mFailed = true;
+			connections = new ArrayList<HttpConnectionManager.Connection>(mConnections);
+		}
+		for (final HttpConnectionManager.Connection conn : connections) {
+			conn.abort();
+		}
+	}
+
+	private synchronized void segmentDone() {
+		mRunningCount--;
+		notifyAll();
+	}
+
+	private synchronized void waitForRunningSegments() {
+		while (mRunningCount > 0) {
+			try {
+				wait();
+			} catch (final InterruptedException e) {
+				// ignore.
+			}
+		}
+	}
+
+	// Returns the number of bytes downloaded from the start of the resource
+	// without a gap. Should be called once no segment is running.
+	private long getDownloadedPrefix() {
+		long prefix = 0;
+		for (final Segment segment : mSegments) {
+			prefix += segment.mDone;
+			if (segment.mDone != segment.mEnd - segment.mStart) break;
+		}
+		return prefix;
+	}
+
+	private static class Segment {
+		final long mStart;
+		final long mEnd;
+		// Only written by the job downloading the segment.
+		volatile long mDone;
+
+		Segment(final long start, final long end) {
+			mStart = start;
+			mEnd = end;
+		}
+	}
+}
@@ -16,7 +16,9 @@
 
 package com.gbnix.imageviewer.data;
 
+import java.io.File;
 import java.io.FileInputStream;
+import java.io.FileDescriptor;
 import java.io.FileNotFoundException;
 import java.io.InputStream;
 import java.net.URI;
@@ -54,6 +56,10 @@ public class UriImage extends MediaItem {
 	private int mWidth;
 	private int mHeight;
 	private int mRotation;
+	// Whether the metadata has been looked up in, or written to, the image
+	// cache.
+	private boolean mMetadataLoaded;
+	private boolean mMetadataSaved;
 
 	private final GalleryApp mApplication;
 
@@ -88,8 +94,8 @@ public class UriImage extends MediaItem {
 	}
 
 	@Override
-	public int getHeight() {
-		return 0;
+	public synchronized int getHeight() {
+		return mHeight;
 	}
 
 	@Override
@@ -120,13 +126,18 @@ public class UriImage extends MediaItem {
 	}
 
 	@Override
-	public int getWidth() {
-		return 0;
+	public synchronized int getWidth() {
+		return mWidth;
+	}
+
+	@Override
+	public boolean isImageCached(final int type) {
+		return ImageCacheRequest.getCacheService(mApplication, type).hasImageData(mPath, type);
 	}
 
 	@Override
 	public Job<Bitmap> requestImage(final int type) {
-		return new BitmapJob(type);
+		return new UriImageRequest(mApplication, mPath, getDataVersion(), type, MediaItem.getTargetSize(type));
 	}
 
 	@Override
@@ -145,6 +156,27 @@ public class UriImage extends MediaItem {
 		}
 	}
 
+	// Returns a string which changes when the source changes, or null if that
+	// can't be known without opening the source. A remote image is known by
+	// the validator the server gave for its download.
+	private String getSourceFingerprint() {
+		if (ContentResolver.SCHEME_FILE.equals(mUri.getScheme())) {
+			final File file = new File(mUri.getPath());
+			return file.length() + "@" + file.lastModified();
+		}
+		if (isOpenedLocally()) return null;
+		DownloadCache.Entry entry;
+		synchronized (this) {
+			entry = mCacheEntry;
+		}
+		if (entry == null) {
+			final URL url = getDownloadUrl();
+			if (url == null) return null;
+			entry = mApplication.getDownloadCache().lookup(url);
+		}
+		return entry == null ? null : entry.getFingerprint();
+	}
+
 	private boolean isSharable() {
 		// We cannot grant read permission to the receiver since we put
 		// the data URI in EXTRA_STREAM instead of the data part of an intent
@@ -167,10 +199,26 @@ public class UriImage extends MediaItem {
 		}
 	}
 
-	private int openOrDownloadInner(final JobContext jc) {
+	// Returns the url the image is downloaded from, or null if it is opened
+	// through the ContentResolver.
+	URL getDownloadUrl() {
+		if (isOpenedLocally()) return null;
+		try {
+			return new URI(mUri.toString()).toURL();
+		} catch (final Exception e) {
+			Log.w(TAG, "invalid url: " + mUri, e);
+			return null;
+		}
+	}
+
+	private boolean isOpenedLocally() {
 		final String scheme = mUri.getScheme();
-		if (ContentResolver.SCHEME_CONTENT.equals(scheme) || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(scheme)
-				|| ContentResolver.SCHEME_FILE.equals(scheme)) {
+		return ContentResolver.SCHEME_CONTENT.equals(scheme) || ContentResolver.SCHEME_ANDROID_RESOURCE.equals(scheme)
+				|| ContentResolver.SCHEME_FILE.equals(scheme);
+	}
+
+	private int openOrDownloadInner(final JobContext jc) {
+		if (isOpenedLocally()) {
 			try {
 				if (MIME_TYPE_JPEG.equalsIgnoreCase(mContentType)) {
 					final InputStream is = mApplication.getContentResolver().openInputStream(mUri);
@@ -207,6 +255,47 @@ public class UriImage extends MediaItem {
 		}
 	}
 
+	// Takes the size and the rotation of the image from the image cache, so
+	// they are known before the source is opened or downloaded. They are
+	// only trusted if the source is known not to have changed since.
+	private void loadMetadata() {
+		synchronized (this) {
+			if (mMetadataLoaded) return;
+			mMetadataLoaded = true;
+		}
+		final ImageMetadata metadata = mApplication.getImageCacheService().getImageMetadata(mPath);
+		if (metadata == null || metadata.fingerprint == null) return;
+		if (!metadata.fingerprint.equals(getSourceFingerprint())) return;
+		synchronized (this) {
+			if (mWidth == 0) {
+				mWidth = metadata.width;
+				mHeight = metadata.height;
+			}
+			if (mState != STATE_DOWNLOADED) {
+				mRotation = metadata.rotation;
+			}
+			mMetadataSaved = true;
+		}
+	}
+
+	// Stores the size and the rotation of the image into the image cache
+	// once they are known from the source.
+	private void saveMetadata() {
+		synchronized (this) {
+			if (mMetadataSaved || mWidth <= 0 || mHeight <= 0) return;
+		}
+		// Without a fingerprint the metadata could never be trusted.
+		final String fingerprint = getSourceFingerprint();
+		if (fingerprint == null) return;
+		final ImageMetadata metadata;
+		synchronized (this) {
+			if (mMetadataSaved) return;
+			mMetadataSaved = true;
+			metadata = new ImageMetadata(mWidth, mHeight, mRotation, mContentType, fingerprint);
+		}
+		mApplication.getImageCacheService().putImageMetadata(mPath, metadata);
+	}
+
 	private boolean prepareInputFile(final JobContext jc) {
 		jc.setCancelListener(new CancelListener() {
 			@Override
@@ -241,41 +330,54 @@ public class UriImage extends MediaItem {
 		}
 	}
 
-	private class BitmapJob implements Job<Bitmap> {
-		private final int mType;
-
-		protected BitmapJob(final int type) {
-			mType = type;
+	private class UriImageRequest extends ImageCacheRequest {
+		UriImageRequest(final GalleryApp application, final Path path, final long version, final int type,
+				final int targetSize) {
+			super(application, path, version, type, targetSize);
 		}
 
 		@Override
 		public Bitmap run(final JobContext jc) {
+			loadMetadata();
+			return super.run(jc);
+		}
+
+		// ImageCacheRequest resizes the decoded bitmap to the target size.
+		@Override
+		public Bitmap onDecodeOriginal(final JobContext jc, final int type) {
 			if (!prepareInputFile(jc)) return null;
-			final int targetSize = MediaItem.getTargetSize(mType);
+			final int targetSize = MediaItem.getTargetSize(type);
+			final FileDescriptor fd = mFileDescriptor.getFileDescriptor();
+			if (getWidth() == 0) {
+				final Options bounds = new Options();
+				DecodeUtils.decodeBounds(jc, fd, bounds);
+				if (bounds.outWidth > 0 && bounds.outHeight > 0) {
+					synchronized (UriImage.this) {
+						mWidth = bounds.outWidth;
+						mHeight = bounds.outHeight;
+					}
+				}
+			}
+			saveMetadata();
 			final Options options = new Options();
 			options.inPreferredConfig = Config.ARGB_8888;
-			Bitmap bitmap = DecodeUtils.decodeThumbnail(jc, mFileDescriptor.getFileDescriptor(), options, targetSize,
-					mType);
-
-			if (jc.isCancelled() || bitmap == null) return null;
-
-			if (mType == MediaItem.TYPE_MICROTHUMBNAIL) {
-				bitmap = BitmapUtils.resizeAndCropCenter(bitmap, targetSize, true);
-			} else {
-				bitmap = BitmapUtils.resizeDownBySideLength(bitmap, targetSize, true);
-			}
-			return bitmap;
+			return DecodeUtils.decodeThumbnail(jc, fd, options, targetSize, type);
 		}
 	}
 
 	private class RegionDecoderJob implements Job<BitmapRegionDecoder> {
 		@Override
 		public BitmapRegionDecoder run(final JobContext jc) {
+			loadMetadata();
 			if (!prepareInputFile(jc)) return null;
 			final BitmapRegionDecoder decoder = DecodeUtils.createBitmapRegionDecoder(jc,
 					mFileDescriptor.getFileDescriptor(), false);
-			mWidth = decoder.getWidth();
-			mHeight = decoder.getHeight();
+			if (decoder == null) return null;
+			synchronized (UriImage.this) {
+				mWidth = decoder.getWidth();
+				mHeight = decoder.getHeight();
+			}
+			saveMetadata();
 			return decoder;
 		}
 	}
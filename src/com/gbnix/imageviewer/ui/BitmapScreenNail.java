@@ -44,13 +44,21 @@ public class BitmapScreenNail implements ScreenNail {
 	private int mWidth;
 	private int mHeight;
 	private Bitmap mBitmap;
+	// True if mBitmap may be used by others, so it must not be put back
+	// into the pool.
+	private boolean mShared;
 	private BitmapTexture mTexture;
 	private long mAnimationStartTime = ANIMATION_NOT_NEEDED;
 
 	public BitmapScreenNail(final Bitmap bitmap) {
+		this(bitmap, false);
+	}
+
+	public BitmapScreenNail(final Bitmap bitmap, final boolean shared) {
 		mWidth = bitmap.getWidth();
 		mHeight = bitmap.getHeight();
 		mBitmap = bitmap;
+		mShared = shared;
 		// We create mTexture lazily, so we don't incur the cost if we don't
 		// actually need it.
 	}
@@ -75,10 +83,9 @@ public class BitmapScreenNail implements ScreenNail {
 		mWidth = newer.mWidth;
 		mHeight = newer.mHeight;
 		if (newer.mBitmap != null) {
-			if (mBitmap != null) {
-				MediaItem.getThumbPool().recycle(mBitmap);
-			}
+			releaseBitmap();
 			mBitmap = newer.mBitmap;
+			mShared = newer.mShared;
 			newer.mBitmap = null;
 
 			if (mTexture != null) {
@@ -168,10 +175,14 @@ public class BitmapScreenNail implements ScreenNail {
 			mTexture.recycle();
 			mTexture = null;
 		}
-		if (mBitmap != null) {
+		releaseBitmap();
+	}
+
+	private void releaseBitmap() {
+		if (mBitmap != null && !mShared) {
 			MediaItem.getThumbPool().recycle(mBitmap);
-			mBitmap = null;
 		}
+		mBitmap = null;
 	}
 
 	public void updatePlaceholderSize(final int width, final int height) {
@@ -25,11 +25,13 @@ import android.content.SharedPreferences;
 import android.preference.PreferenceManager;
 
 import com.gbnix.imageviewer.common.BlobCache;
+import com.gbnix.imageviewer.common.ShardedBlobCache;
 
 public class CacheManager {
 	private static final String TAG = "CacheManager";
 	private static final String KEY_CACHE_UP_TO_DATE = "cache-up-to-date";
 	private static HashMap<String, BlobCache> sCacheMap = new HashMap<String, BlobCache>();
+	private static HashMap<String, ShardedBlobCache> sShardedCacheMap = new HashMap<String, ShardedBlobCache>();
 	private static boolean sOldCheckDone = false;
 
 	// Return null when we cannot instantiate a BlobCache, e.g.:
@@ -37,6 +39,14 @@ public class CacheManager {
 	// This can only be called from data thread.
 	public static BlobCache getCache(final Context context, final String filename, final int maxEntries,
 			final int maxBytes, final int version) {
+		return getCache(context, filename, maxEntries, maxBytes, version, 2);
+	}
+
+	// Same as above, but the cache keeps regionCount generations of data. The
+	// maxEntries and maxBytes limits apply to each of them. A maxBytes of 2G
+	// or more is allowed.
+	public static BlobCache getCache(final Context context, final String filename, final int maxEntries,
+			final long maxBytes, final int version, final int regionCount) {
 		synchronized (sCacheMap) {
 			if (!sOldCheckDone) {
 				removeOldFilesIfNecessary(context);
@@ -47,7 +57,7 @@ public class CacheManager {
 				final File cacheDir = context.getExternalCacheDir();
 				final String path = cacheDir.getAbsolutePath() + "/" + filename;
 				try {
-					cache = new BlobCache(path, maxEntries, maxBytes, false, version);
+					cache = new BlobCache(path, maxEntries, maxBytes, false, version, regionCount);
 					sCacheMap.put(filename, cache);
 				} catch (final IOException e) {
 					Log.e(TAG, "Cannot instantiate cache!", e);
@@ -57,6 +67,30 @@ public class CacheManager {
 		}
 	}
 
+	// Same as above, but the cache is split into shardCount independent
+	// BlobCaches. The limits apply to each region of each shard.
+	public static ShardedBlobCache getShardedCache(final Context context, final String filename,
+			final int maxEntries, final long maxBytes, final int version, final int regionCount, final int shardCount) {
+		synchronized (sCacheMap) {
+			if (!sOldCheckDone) {
+				removeOldFilesIfNecessary(context);
+				sOldCheckDone = true;
+			}
+			ShardedBlobCache cache = sShardedCacheMap.get(filename);
+			if (cache == null) {
+				final File cacheDir = context.getExternalCacheDir();
+				final String path = cacheDir.getAbsolutePath() + "/" + filename;
+				try {
+					cache = new ShardedBlobCache(path, shardCount, maxEntries, maxBytes, false, version, regionCount);
+					sShardedCacheMap.put(filename, cache);
+				} catch (final IOException e) {
+					Log.e(TAG, "Cannot instantiate cache!", e);
+				}
+			}
+			return cache;
+		}
+	}
+
 	// Removes the old files if the data is wiped.
 	private static void removeOldFilesIfNecessary(final Context context) {
 		final SharedPreferences pref = PreferenceManager.getDefaultSharedPreferences(context);
@@ -72,7 +106,8 @@ public class CacheManager {
 		final File cacheDir = context.getExternalCacheDir();
 		final String prefix = cacheDir.getAbsolutePath() + "/";
 
-		BlobCache.deleteFiles(prefix + "imgcache");
+		ShardedBlobCache.deleteFiles(prefix + "imgcache");
+		ShardedBlobCache.deleteFiles(prefix + "scrcache");
 		BlobCache.deleteFiles(prefix + "rev_geocoding");
 		BlobCache.deleteFiles(prefix + "bookmark");
 	}
@@ -0,0 +1,209 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import com.gbnix.imageviewer.util.ThreadPool.CancelListener;
+import com.gbnix.imageviewer.util.ThreadPool.Job;
+import com.gbnix.imageviewer.util.ThreadPool.JobContext;
+
+// Runs at most one job per key at a time. The first caller asking for a key
+// runs the job on its own thread, and the callers asking for the same key
+// while it runs wait for its result instead of running the job again.
+//
+// The job sees itself cancelled only when every caller waiting for it has
+// been cancelled, like the downloads shared by DownloadCache.TaskProxy. A
+// caller asking for the key after that starts a new job.
+//
+// Each waiting caller gets the result through shareResult(), which is called
+// on the thread of the first caller before that caller gets the result
+// itself. Subclasses override it to give each caller its own copy of a
+// result which the callers may modify or recycle.
+public class JobCoalescer<K, T> {
+	private static final String TAG = "JobCoalescer";
+
+	private final HashMap<K, Flight> mFlights = new HashMap<K, Flight>();
+
+	public T run(final JobContext jc, final K key, final Job<T> job) {
+		Flight flight;
+		final Waiter waiter = new Waiter();
+		synchronized (mFlights) {
+			flight = mFlights.get(key);
+			if (flight == null) {
+				flight = new Flight(key, jc);
+				mFlights.put(key, flight);
+				waiter.mIsLeader = true;
+			}
+			flight.addWaiter(waiter);
+		}
+		return waiter.mIsLeader ? flight.lead(waiter, job) : waiter.get(jc, flight);
+	}
+
+	// Returns the result to give to a waiting caller.
+	protected T shareResult(final T result) {
+		return result;
+	}
+
+	private class Waiter {
+		private boolean mIsLeader;
+		private boolean mIsCancelled;
+		private boolean mIsDone;
+		private T mResult;
+
+		// The cancel listener is set and cleared outside the monitor of the
+		// waiter: the Worker calls it holding its own monitor, and the
+		// listener takes the one of the waiter.
+		public T get(final JobContext jc, final Flight flight) {
+			jc.setCancelListener(new CancelListener() {
+				@Override
+				public void onCancel() {
+					flight.removeWaiter(Waiter.this);
+					synchronized (Waiter.this) {
+						mIsCancelled = true;
+						Waiter.this.notifyAll();
+					}
+				}
+			});
+			final T result;
+			synchronized (this) {
+				while (!mIsCancelled && !mIsDone) {
+					try {
+						wait();
+					} catch (final InterruptedException e) {
+						Log.w(TAG, "ignore interrupt", e);
+					}
+				}
+				result = mResult;
+			}
+			jc.setCancelListener(null);
+			return result;
+		}
+
+		synchronized boolean isCancelled() {
+			return mIsCancelled;
+		}
+
+		synchronized void setResult(final T result) {
+			if (mIsCancelled) return;
+			mResult = result;
+			mIsDone = true;
+			notifyAll();
+		}
+	}
+
+	// The job running for a key, and the callers waiting for it. It is the
+	// JobContext given to the job.
+	private class Flight implements JobContext {
+		private final K mKey;
+		private final JobContext mLeaderContext;
+		private final HashSet<Waiter> mWaiters = new HashSet<Waiter>();
+		private CancelListener mCancelListener;
+		private volatile boolean mIsCancelled;
+
+		public Flight(final K key, final JobContext leaderContext) {
+			mKey = key;
+			mLeaderContext = leaderContext;
+		}
+
+		// Below are the methods for JobContext.
+		@Override
+		public boolean isCancelled() {
+			return mIsCancelled;
+		}
+
+		@Override
+		public void setCancelListener(final CancelListener listener) {
+			final boolean cancelled;
+			synchronized (mFlights) {
+				mCancelListener = listener;
+				cancelled = mIsCancelled;
+			}
+			if (cancelled && listener != null) {
+				listener.onCancel();
+			}
+		}
+
+		@Override
+		public boolean setMode(final int mode) {
+			// The job runs on the thread of the first caller. If that caller
+			// has been cancelled the resource can't be acquired for it, but
+			// the job goes on for the other callers anyway.
+			return mLeaderContext.setMode(mode) || !mIsCancelled;
+		}
+
+		@Override
+		public boolean throttle(final int bytes) {
+			return mLeaderContext.throttle(bytes) || !mIsCancelled;
+		}
+
+		// should be used in synchronized block of mFlights
+		void addWaiter(final Waiter waiter) {
+			mWaiters.add(waiter);
+		}
+
+		void removeWaiter(final Waiter waiter) {
+			CancelListener listener = null;
+			synchronized (mFlights) {
+				if (!mWaiters.remove(waiter) || !mWaiters.isEmpty()) return;
+				mIsCancelled = true;
+				listener = mCancelListener;
+				// Later callers must not join a cancelled job.
+				if (mFlights.get(mKey) == this) {
+					mFlights.remove(mKey);
+				}
+			}
+			if (listener != null) {
+				listener.onCancel();
+			}
+		}
+
+		// Runs the job on the thread of the first caller, whose own
+		// cancellation only removes it from the waiters.
+		T lead(final Waiter leader, final Job<T> job) {
+			mLeaderContext.setCancelListener(new CancelListener() {
+				@Override
+				public void onCancel() {
+					removeWaiter(leader);
+				}
+			});
+			T result = null;
+			try {
+				result = job.run(this);
+			} finally {
+				mLeaderContext.setCancelListener(null);
+				final ArrayList<Waiter> waiters;
+				synchronized (mFlights) {
+					if (mFlights.get(mKey) == this) {
+						mFlights.remove(mKey);
+					}
+					waiters = new ArrayList<Waiter>(mWaiters);
+					mWaiters.clear();
+				}
+				for (final Waiter waiter : waiters) {
+					if (waiter == leader || waiter.isCancelled()) {
+						continue;
+					}
+					waiter.setResult(result == null ? null : shareResult(result));
+				}
+			}
+			return result;
+		}
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (C) 2013 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.gbnix.imageviewer.util;
+
+import com.gbnix.imageviewer.common.Utils;
+import com.gbnix.imageviewer.util.ThreadPool.JobContext;
+
+// Hands out the network slots of a ThreadPool to two classes of jobs: the
+// foreground ones, which load what is on the screen, and the background ones
+// (prefetches and the like).
+//
+// - A foreground job gets a slot as long as fewer than limit foreground jobs
+//   hold one, even if background jobs hold all the slots: it takes over the
+//   slot of a background job, which then shares the bandwidth with it.
+// - A background job only gets a free slot, and only when no foreground job
+//   is waiting for one.
+// - While any foreground job holds or waits for a slot, the background jobs
+//   together may only use backgroundShare percent of the measured bandwidth.
+//   Each transfer reports its bytes to throttle(), which blocks a background
+//   job until its share allows the next read. With no foreground job around,
+//   the background jobs run at full speed.
+//
+// The monitor of the scheduler is the one the waiting jobs wait on, so the
+// Worker cancelling a job notifies it.
+class NetworkScheduler {
+	static final int FOREGROUND = 0;
+	static final int BACKGROUND = 1;
+
+	// The bandwidth is sampled over windows of this length. A transfer
+	// starting after a longer pause starts a new window, so the pause isn't
+	// taken as a slow link.
+	private static final long MEASURE_INTERVAL = 500; // ms
+
+	private final int mLimit;
+	private int mBackgroundShare;
+
+	private final int[] mHeld = new int[2];
+	private final int[] mWaiting = new int[2];
+	// Moving average of the time the jobs of each class wait for a slot.
+	private final long[] mWaitTime = new long[2];
+
+	private long mBandwidth; // bytes per second, 0 until measured
+	private long mWindowStart;
+	private long mWindowBytes;
+	private long mLastTransferTime;
+	// The time before which the background jobs may not read again.
+	private long mBackgroundNextTime;
+
+	NetworkScheduler(final int limit, final int backgroundShare) {
+		mLimit = limit;
+		mBackgroundShare = backgroundShare;
+	}
+
+	synchronized void setBackgroundShare(final int percent) {
+		mBackgroundShare = Utils.clamp(percent, 1, 100);
+		notifyAll();
+	}
+
+	synchronized long getBandwidth() {
+		return mBandwidth;
+	}
+
+	synchronized int getQueueDepth(final int networkClass) {
+		return mWaiting[networkClass];
+	}
+
+	synchronized long getWaitTime(final int networkClass) {
+		return mWaitTime[networkClass];
+	}
+
+	synchronized boolean isIdle() {
+		return mHeld[FOREGROUND] == 0 && mHeld[BACKGROUND] == 0;
+	}
+
+	// Waits for a slot for a job of the given class. Returns false if the job
+	// is cancelled first.
+	synchronized boolean acquire(final JobContext jc, final int networkClass) {
+		final long start = System.currentTimeMillis();
+		mWaiting[networkClass]++;
+		try {
+			while (true) {
+				if (jc.isCancelled()) return false;
+				if (canAcquire(networkClass)) break;
+				try {
+					wait();
+				} catch (final InterruptedException e) {
+					// ignore.
+				}
+			}
+			mHeld[networkClass]++;
+			final long waitTime = System.currentTimeMillis() - start;
+			mWaitTime[networkClass] = (mWaitTime[networkClass] * 3 + waitTime) / 4;
+			return true;
+		} finally {
+			mWaiting[networkClass]--;
+			// A background job may get in once no foreground job waits.
+			notifyAll();
+		}
+	}
+
+	synchronized void release(final int networkClass) {
+		mHeld[networkClass]--;
+		notifyAll();
+	}
+
+	// Moves a slot from the background class to the foreground class.
+	synchronized void promote() {
+		mHeld[BACKGROUND]--;
+		mHeld[FOREGROUND]++;
+		notifyAll();
+	}
+
+	// Accounts for bytes just read by a job of the given class, and blocks a
+	// background job until its share allows the next read. Returns false if
+	// the job is cancelled.
+	synchronized boolean throttle(final JobContext jc, final int networkClass, final int bytes) {
+		long now = System.currentTimeMillis();
+		measure(now, bytes);
+		if (networkClass == FOREGROUND) return !jc.isCancelled();
+
+		final long rate = mBandwidth * mBackgroundShare / 100;
+		if (!isForegroundActive() || rate == 0) {
+			mBackgroundNextTime = now;
+			return !jc.isCancelled();
+		}
+		mBackgroundNextTime = Math.max(now, mBackgroundNextTime) + bytes * 1000L / rate;
+		while (!jc.isCancelled()) {
+			// Released as soon as the foreground jobs are gone.
+			if (now >= mBackgroundNextTime || !isForegroundActive()) return true;
+			try {
+				wait(mBackgroundNextTime - now);
+			} catch (final InterruptedException e) {
+				// ignore.
+			}
+			now = System.currentTimeMillis();
+		}
+		return false;
+	}
+
+	private boolean canAcquire(final int networkClass) {
+		if (networkClass == FOREGROUND) return mHeld[FOREGROUND] < mLimit;
+		return mWaiting[FOREGROUND] == 0 && mHeld[FOREGROUND] + mHeld[BACKGROUND] < mLimit;
+	}
+
+	private boolean isForegroundActive() {
+		return mHeld[FOREGROUND] > 0 || mWaiting[FOREGROUND] > 0;
+	}
+
+	private void measure(final long now, final int bytes) {
+		if (now - mLastTransferTime > MEASURE_INTERVAL) {
+			mWindowStart = now;
+			mWindowBytes = 0;
+		}
+		mLastTransferTime = now;
+		mWindowBytes += bytes;
+		final long elapsed = now - mWindowStart;
+		if (elapsed < MEASURE_INTERVAL) return;
+		final long bandwidth = mWindowBytes * 1000 / elapsed;
+		mBandwidth = mBandwidth == 0 ? bandwidth : (mBandwidth * 3 + bandwidth) / 4;
+		mWindowStart = now;
+		mWindowBytes = 0;
+	}
+}
@@ -30,11 +30,16 @@ public class ThreadPool {
 	public static final int MODE_NONE = 0;
 	public static final int MODE_CPU = 1;
 	public static final int MODE_NETWORK = 2;
+	// Network access for work nobody is waiting for. See NetworkScheduler.
+	public static final int MODE_NETWORK_BACKGROUND = 3;
+
+	private static final int NETWORK_LIMIT = 2;
+	private static final int DEFAULT_BACKGROUND_SHARE = 25; // percent
 
 	public static final JobContext JOB_CONTEXT_STUB = new JobContextStub();
 
 	ResourceCounter mCpuCounter = new ResourceCounter(2);
-	ResourceCounter mNetworkCounter = new ResourceCounter(2);
+	final NetworkScheduler mNetworkScheduler = new NetworkScheduler(NETWORK_LIMIT, DEFAULT_BACKGROUND_SHARE);
 
 	private final Executor mExecutor;
 
@@ -44,6 +49,40 @@ public class ThreadPool {
 						android.os.Process.THREAD_PRIORITY_BACKGROUND));
 	}
 
+	// Returns true if no job holds the resource of the given mode. Background
+	// jobs use this to leave the resources to the foreground ones.
+	public boolean isIdle(final int mode) {
+		if (isNetworkMode(mode)) return mNetworkScheduler.isIdle();
+		if (mode != MODE_CPU) return true;
+		synchronized (mCpuCounter) {
+			return mCpuCounter.value == mCpuCounter.limit;
+		}
+	}
+
+	// Returns the number of jobs waiting for the network resource of the
+	// given mode, MODE_NETWORK or MODE_NETWORK_BACKGROUND.
+	public int getNetworkQueueDepth(final int mode) {
+		return mNetworkScheduler.getQueueDepth(toNetworkClass(mode));
+	}
+
+	// Returns the average time (in ms) the recent jobs of the given network
+	// mode waited for their resource.
+	public long getNetworkWaitTime(final int mode) {
+		return mNetworkScheduler.getWaitTime(toNetworkClass(mode));
+	}
+
+	// Returns the bandwidth measured over the recent transfers, in bytes per
+	// second, or 0 if nothing has been transferred yet.
+	public long getNetworkBandwidth() {
+		return mNetworkScheduler.getBandwidth();
+	}
+
+	// Sets the percentage of the bandwidth the background network jobs may
+	// use while foreground ones are running.
+	public void setBackgroundBandwidthShare(final int percent) {
+		mNetworkScheduler.setBackgroundShare(percent);
+	}
+
 	public <T> Future<T> submit(final Job<T> job) {
 		return submit(job, null);
 	}
@@ -71,6 +110,19 @@ public class ThreadPool {
 		void setCancelListener(CancelListener listener);
 
 		boolean setMode(int mode);
+
+		// Called by network transfers with the number of bytes just read. It
+		// blocks a background job which is over its share of the bandwidth.
+		// Returns false if the job is cancelled.
+		boolean throttle(int bytes);
+	}
+
+	private static boolean isNetworkMode(final int mode) {
+		return mode == MODE_NETWORK || mode == MODE_NETWORK_BACKGROUND;
+	}
+
+	private static int toNetworkClass(final int mode) {
+		return mode == MODE_NETWORK_BACKGROUND ? NetworkScheduler.BACKGROUND : NetworkScheduler.FOREGROUND;
 	}
 
 	private static class JobContextStub implements JobContext {
@@ -87,13 +139,20 @@ public class ThreadPool {
 		public boolean setMode(final int mode) {
 			return true;
 		}
+
+		@Override
+		public boolean throttle(final int bytes) {
+			return true;
+		}
 	}
 
 	private static class ResourceCounter {
 		public int value;
+		public final int limit;
 
 		public ResourceCounter(final int v) {
 			value = v;
+			limit = v;
 		}
 	}
 
@@ -102,7 +161,8 @@ public class ThreadPool {
 		private final Job<T> mJob;
 		private final FutureListener<T> mListener;
 		private CancelListener mCancelListener;
-		private ResourceCounter mWaitOnResource;
+		// The monitor the job waits on for a resource, notified on cancel.
+		private Object mWaitOnResource;
 		private volatile boolean mIsCancelled;
 		private boolean mIsDone;
 		private T mResult;
@@ -189,23 +249,50 @@ public class ThreadPool {
 
 		@Override
 		public boolean setMode(final int mode) {
+			// A background network job going foreground keeps its slot.
+			if (mMode == MODE_NETWORK_BACKGROUND && mode == MODE_NETWORK && !mIsCancelled) {
+				mNetworkScheduler.promote();
+				mMode = mode;
+				return true;
+			}
+
 			// Release old resource
-			ResourceCounter rc = modeToCounter(mMode);
-			if (rc != null) {
-				releaseResource(rc);
+			if (isNetworkMode(mMode)) {
+				mNetworkScheduler.release(toNetworkClass(mMode));
+			} else {
+				final ResourceCounter rc = modeToCounter(mMode);
+				if (rc != null) {
+					releaseResource(rc);
+				}
 			}
 			mMode = MODE_NONE;
 
 			// Acquire new resource
-			rc = modeToCounter(mode);
-			if (rc != null) {
-				if (!acquireResource(rc)) return false;
+			if (isNetworkMode(mode)) {
+				if (!acquireNetwork(toNetworkClass(mode))) return false;
 				mMode = mode;
+			} else {
+				final ResourceCounter rc = modeToCounter(mode);
+				if (rc != null) {
+					if (!acquireResource(rc)) return false;
+					mMode = mode;
+				}
 			}
 
 			return true;
 		}
 
+		@Override
+		public boolean throttle(final int bytes) {
+			if (!isNetworkMode(mMode)) return !mIsCancelled;
+			if (!setWaitOnResource(mNetworkScheduler)) return false;
+			try {
+				return mNetworkScheduler.throttle(this, toNetworkClass(mMode), bytes);
+			} finally {
+				setWaitOnResource(null);
+			}
+		}
+
 		@Override
 		public void waitDone() {
 			get();
@@ -242,11 +329,25 @@ public class ThreadPool {
 			return true;
 		}
 
+		private boolean acquireNetwork(final int networkClass) {
+			if (!setWaitOnResource(mNetworkScheduler)) return false;
+			try {
+				return mNetworkScheduler.acquire(this, networkClass);
+			} finally {
+				setWaitOnResource(null);
+			}
+		}
+
+		// Returns false (and sets nothing) if the job is cancelled.
+		private synchronized boolean setWaitOnResource(final Object monitor) {
+			if (monitor != null && mIsCancelled) return false;
+			mWaitOnResource = monitor;
+			return true;
+		}
+
 		private ResourceCounter modeToCounter(final int mode) {
 			if (mode == MODE_CPU)
 				return mCpuCounter;
-			else if (mode == MODE_NETWORK)
-				return mNetworkCounter;
 			else
 				return null;
 		}